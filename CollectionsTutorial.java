@@ -1,7 +1,26 @@
 package org.helloworld;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * A comprehensive tutorial on Java Collections Framework
@@ -82,28 +101,29 @@ public class CollectionsTutorial {
         System.out.println("First element: " + ((LinkedList<String>) names).getFirst());
         System.out.println("Last element: " + ((LinkedList<String>) names).getLast());
 
+        // CircularArrayDeque example
+        System.out.println("\nCircularArrayDeque Example:");
+        /*
+         * LinkedList allocates a node per element and must walk the nodes to reach an index.
+         * CircularArrayDeque (defined below) keeps its elements in one array used as a ring,
+         * so it is a fast queue at both ends and still reads any index directly.
+         */
+        CircularArrayDeque<String> tasks = new CircularArrayDeque<>();
+        tasks.add("John");
+        tasks.add("Jane");
+        tasks.add("Bob");
+        tasks.addFirst("Urgent");
+        System.out.println("CircularArrayDeque: " + tasks);
+        System.out.println("First element: " + tasks.getFirst());
+        System.out.println("Last element: " + tasks.getLast());
+        System.out.println("Element at index 2: " + tasks.get(2));
+        List<String> batch = new ArrayList<>();
+        tasks.drainTo(batch, 2);
+        System.out.println("Drained " + batch + ", left " + tasks);
+
         // The Comparable Interface
         System.out.println("\n=== The Comparable Interface ===");
-        class Person implements Comparable<Person> {
-            String name;
-            int age;
-
-            Person(String name, int age) {
-                this.name = name;
-                this.age = age;
-            }
-
-            @Override
-            public int compareTo(Person other) {
-                return this.age - other.age;
-            }
-
-            @Override
-            public String toString() {
-                return name + " (" + age + ")";
-            }
-        }
-
+        // Person (defined below) implements Comparable<Person> and sorts by age
         List<Person> people = new ArrayList<>();
         people.add(new Person("Alice", 30));
         people.add(new Person("Bob", 25));
@@ -117,6 +137,16 @@ public class CollectionsTutorial {
         Collections.sort(people, nameComparator);
         System.out.println("Sorted by name: " + people);
 
+        // Sorting by an int key
+        System.out.println("\n=== Sorting by an Int Key ===");
+        /*
+         * When the sort key is a small int such as an age, a radix sort places every element
+         * directly by its key instead of comparing elements with each other. Like Collections.sort
+         * it is stable: people of the same age keep their current (here: by name) order.
+         */
+        IntKeySorter.sort(people, Person.BY_AGE);
+        System.out.println("Radix sorted by age: " + people);
+
         // The Set Interface
         System.out.println("\n=== The Set Interface ===");
         // HashSet example
@@ -139,6 +169,31 @@ public class CollectionsTutorial {
         System.out.println("First element: " + ((TreeSet<Integer>) sortedNumbers).first());
         System.out.println("Last element: " + ((TreeSet<Integer>) sortedNumbers).last());
 
+        // CompressedIntSet example
+        System.out.println("\nCompressedIntSet Example:");
+        /*
+         * A TreeSet<Integer> spends a tree node and a boxed Integer on every element.
+         * CompressedIntSet (defined below) splits ints into chunks of 65536 values and stores
+         * each chunk as a sorted array, a bitmap or a list of runs, whichever is smallest.
+         */
+        CompressedIntSet sortedIds = new CompressedIntSet();
+        sortedIds.add(5);
+        sortedIds.add(2);
+        sortedIds.add(8);
+        for (int id = 100_000; id < 200_000; id++) {
+            sortedIds.add(id); // A long run of consecutive ids compresses to a few bytes
+        }
+        sortedIds.runOptimize();
+        System.out.println("Size: " + sortedIds.size());
+        System.out.println("First element: " + sortedIds.first());
+        System.out.println("Last element: " + sortedIds.last());
+        System.out.println("Contains 150000: " + sortedIds.contains(150_000));
+        CompressedIntSet smallIds = new CompressedIntSet();
+        smallIds.add(2);
+        smallIds.add(3);
+        smallIds.add(8);
+        System.out.println("Intersection with [2, 3, 8]: " + CompressedIntSet.intersection(sortedIds, smallIds));
+
         // Hash tables
         System.out.println("\n=== Hash Tables ===");
         /*
@@ -160,6 +215,25 @@ public class CollectionsTutorial {
         System.out.println("Contains key 'Jane': " + studentScores.containsKey("Jane"));
         System.out.println("Contains value 92: " + studentScores.containsValue(92));
 
+        // Primitive-valued map
+        System.out.println("\nObjectIntMap Example:");
+        /*
+         * HashMap<String, Integer> boxes every score and allocates a node per entry.
+         * ObjectIntMap (defined below) keeps keys and int values in two plain arrays,
+         * and can keep a value-to-keys index so containsValue does not scan the map.
+         */
+        ObjectIntMap<String> scores = new ObjectIntMap<>(true);
+        scores.put("John", 85);
+        scores.put("Jane", 92);
+        scores.put("Bob", 78);
+        scores.addTo("Bob", 14); // A bonus brings Bob to 92 as well
+        System.out.println("ObjectIntMap: " + scores);
+        System.out.println("John's score: " + scores.getInt("John"));
+        System.out.println("Contains value 92: " + scores.containsValue(92));
+        System.out.print("Scored 92:");
+        scores.forEachKeyWithValue(92, name -> System.out.print(" " + name));
+        System.out.println();
+
         // TreeMap example
         System.out.println("\nTreeMap Example:");
         Map<String, String> countryCapitals = new TreeMap<>();
@@ -170,6 +244,27 @@ public class CollectionsTutorial {
         System.out.println("First key: " + ((TreeMap<String, String>) countryCapitals).firstKey());
         System.out.println("Last key: " + ((TreeMap<String, String>) countryCapitals).lastKey());
 
+        // Concurrent ordered index
+        System.out.println("\n=== Concurrent Ordered Index ===");
+        /*
+         * TreeMap and TreeSet are not thread-safe. ConcurrentOrderedIndex (defined below) keeps
+         * its keys sorted in B+-tree nodes that many threads can insert into at once, while
+         * readers scan ranges without taking any lock. Keys here are ordered by age, then name.
+         */
+        ConcurrentOrderedIndex<Person, String> teams =
+                new ConcurrentOrderedIndex<>(p -> p.age, Comparator.comparing((Person p) -> p.name));
+        teams.put(new Person("Alice", 30), "Engineering");
+        teams.put(new Person("Bob", 25), "Sales");
+        teams.put(new Person("Charlie", 35), "Engineering");
+        teams.put(new Person("Dana", 30), "Marketing");
+        System.out.println("First key: " + teams.firstKey());
+        System.out.println("Last key: " + teams.lastKey());
+        System.out.print("Aged 30 to 39:");
+        for (Map.Entry<Person, String> entry : teams.rangeOfPrefix(30, 40)) {
+            System.out.print(" " + entry.getKey() + "=" + entry.getValue());
+        }
+        System.out.println();
+
         // Summary
         System.out.println("\n=== Summary ===");
         /*
@@ -183,3 +278,3056 @@ public class CollectionsTutorial {
          */
     }
 }
+
+/**
+ * A person with a name and an age. The natural order is by age.
+ */
+class Person implements Comparable<Person> {
+    // Lets IntKeySorter sort by age without comparisons
+    static final Comparator<Person> BY_AGE = IntKeySorter.comparingInt(p -> p.age);
+
+    String name;
+    int age;
+
+    Person(String name, int age) {
+        this.name = name;
+        this.age = age;
+    }
+
+    @Override
+    public int compareTo(Person other) {
+        // this.age - other.age overflows when the ages are far apart, e.g. Integer.MIN_VALUE and 1
+        return Integer.compare(this.age, other.age);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + age + ")";
+    }
+}
+
+/**
+ * Stable sorting of objects by an int key without comparing them.
+ * Each element's key is read once; small key ranges are sorted with a single counting pass,
+ * wider ones with an LSD radix sort that only runs as many digit passes as the range needs.
+ * Comparators that are not int keys fall back to Collections.sort.
+ */
+final class IntKeySorter {
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final int MAX_COUNTING_BITS = 16;
+    private static final int RADIX_BITS = 11; // Three passes cover any int key
+
+    private IntKeySorter() {
+    }
+
+    /**
+     * A comparator by int key that IntKeySorter recognizes and sorts with a radix sort.
+     * Elsewhere it behaves like Comparator.comparingInt.
+     */
+    static <T> Comparator<T> comparingInt(ToIntFunction<? super T> key) {
+        return new IntKeyComparator<>(key);
+    }
+
+    static <T> void sort(List<T> list, Comparator<? super T> comparator) {
+        if (comparator instanceof IntKeyComparator) {
+            sort(list, ((IntKeyComparator<? super T>) comparator).key);
+        } else {
+            Collections.sort(list, comparator);
+        }
+    }
+
+    static <T> void parallelSort(List<T> list, Comparator<? super T> comparator) {
+        if (comparator instanceof IntKeyComparator) {
+            parallelSort(list, ((IntKeyComparator<? super T>) comparator).key);
+        } else {
+            Collections.sort(list, comparator);
+        }
+    }
+
+    static <T> void sort(List<T> list, ToIntFunction<? super T> key) {
+        sort(list, key, false);
+    }
+
+    // Splits each pass across the common pool once the list is large enough to pay for it
+    static <T> void parallelSort(List<T> list, ToIntFunction<? super T> key) {
+        sort(list, key, list.size() >= PARALLEL_THRESHOLD);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void sort(List<T> list, ToIntFunction<? super T> key, boolean parallel) {
+        int n = list.size();
+        if (n < 2) {
+            return;
+        }
+        Object[] items = list.toArray();
+        int[] keys = new int[n];
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            int k = key.applyAsInt((T) items[i]);
+            keys[i] = k;
+            min = Math.min(min, k);
+            max = Math.max(max, k);
+        }
+        if (min == max) {
+            return; // All keys equal: a stable sort changes nothing
+        }
+        // Shift keys to start at 0; read as unsigned this also handles ranges wider than Integer.MAX_VALUE
+        for (int i = 0; i < n; i++) {
+            keys[i] -= min;
+        }
+        int keyBits = 32 - Integer.numberOfLeadingZeros(max - min);
+        int digitBits = keyBits <= MAX_COUNTING_BITS && (1 << keyBits) <= 2 * n
+                ? keyBits                              // One counting pass
+                : Math.min(RADIX_BITS, keyBits);
+
+        Object[] otherItems = new Object[n];
+        int[] otherKeys = new int[n];
+        for (int shift = 0; shift < keyBits; shift += digitBits) {
+            if (parallel) {
+                parallelPass(items, keys, otherItems, otherKeys, shift, digitBits);
+            } else {
+                pass(items, keys, otherItems, otherKeys, shift, digitBits);
+            }
+            Object[] swapItems = items;
+            items = otherItems;
+            otherItems = swapItems;
+            int[] swapKeys = keys;
+            keys = otherKeys;
+            otherKeys = swapKeys;
+        }
+
+        ListIterator<T> it = list.listIterator();
+        for (Object item : items) {
+            it.next();
+            it.set((T) item);
+        }
+    }
+
+    // One stable counting pass on the digit at shift
+    private static void pass(Object[] items, int[] keys, Object[] toItems, int[] toKeys, int shift, int bits) {
+        int mask = (1 << bits) - 1;
+        int[] next = new int[mask + 2];
+        for (int k : keys) {
+            next[((k >>> shift) & mask) + 1]++;
+        }
+        for (int d = 1; d < next.length; d++) {
+            next[d] += next[d - 1];
+        }
+        for (int i = 0; i < keys.length; i++) {
+            int pos = next[(keys[i] >>> shift) & mask]++;
+            toItems[pos] = items[i];
+            toKeys[pos] = keys[i];
+        }
+    }
+
+    // Each chunk counts its own digits; chunk c then writes each digit after the same digit of chunks before it,
+    // so the scatter runs in parallel and stays stable
+    private static void parallelPass(Object[] items, int[] keys, Object[] toItems, int[] toKeys, int shift, int bits) {
+        int mask = (1 << bits) - 1;
+        int n = keys.length;
+        int chunks = Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, Math.max(1, n / (PARALLEL_THRESHOLD / 4)));
+        int[][] next = new int[chunks][mask + 1];
+        IntStream.range(0, chunks).parallel().forEach(c -> {
+            int[] counts = next[c];
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                counts[(keys[i] >>> shift) & mask]++;
+            }
+        });
+        int position = 0;
+        for (int d = 0; d <= mask; d++) {
+            for (int c = 0; c < chunks; c++) {
+                int count = next[c][d];
+                next[c][d] = position;
+                position += count;
+            }
+        }
+        IntStream.range(0, chunks).parallel().forEach(c -> {
+            int[] positions = next[c];
+            for (int i = chunkStart(c, chunks, n), end = chunkStart(c + 1, chunks, n); i < end; i++) {
+                int pos = positions[(keys[i] >>> shift) & mask]++;
+                toItems[pos] = items[i];
+                toKeys[pos] = keys[i];
+            }
+        });
+    }
+
+    private static int chunkStart(int chunk, int chunks, int n) {
+        return (int) ((long) n * chunk / chunks);
+    }
+
+    private static final class IntKeyComparator<T> implements Comparator<T> {
+        final ToIntFunction<? super T> key;
+
+        IntKeyComparator(ToIntFunction<? super T> key) {
+            this.key = key;
+        }
+
+        @Override
+        public int compare(T a, T b) {
+            return Integer.compare(key.applyAsInt(a), key.applyAsInt(b));
+        }
+    }
+}
+
+/**
+ * Compares IntKeySorter with Collections.sort on lists of people.
+ * Prints CSV: people,method,millis. The largest list size can be passed as the first argument.
+ */
+class SortBenchmark {
+    public static void main(String[] args) {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Comparator<Person> nameComparator = (p1, p2) -> p1.name.compareTo(p2.name);
+        System.out.println("people,method,millis");
+        for (int count = 10_000; count <= largest; count *= 10) {
+            Random random = new Random(42);
+            List<Person> people = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                people.add(new Person("Person" + random.nextInt(count), random.nextInt(100)));
+            }
+            time(people, "Collections.sort(people)", list -> Collections.sort(list));
+            time(people, "Collections.sort(people, nameComparator)", list -> Collections.sort(list, nameComparator));
+            time(people, "IntKeySorter.sort", list -> IntKeySorter.sort(list, Person.BY_AGE));
+            time(people, "IntKeySorter.parallelSort", list -> IntKeySorter.parallelSort(list, Person.BY_AGE));
+        }
+    }
+
+    // Every run sorts a fresh copy of the same unsorted list
+    private static void time(List<Person> people, String method, Consumer<List<Person>> sorter) {
+        sorter.accept(new ArrayList<>(people)); // Warm-up
+        List<Person> copy = new ArrayList<>(people);
+        long start = System.nanoTime();
+        sorter.accept(copy);
+        System.out.printf(Locale.ROOT, "%d,%s,%.2f%n", people.size(), method, (System.nanoTime() - start) / 1e6);
+    }
+}
+
+/**
+ * A sorted map that many threads can update and scan at the same time.
+ * Keys are ordered by an int prefix first (such as an age) and then by a comparator for ties
+ * (such as the name), so composite keys need no wrapper objects.
+ *
+ * <p>Entries live in B+-tree nodes holding up to 64 keys in parallel arrays, with the int
+ * prefixes in their own array so most comparisons never touch the key objects. Leaves are
+ * linked left to right for range scans. Each node has a StampedLock: readers and scans walk
+ * the tree with optimistic stamps and retry if a node changed under them, writers lock only
+ * the leaf they insert into, plus its parent when a full node has to be split. A writer
+ * whose optimistic attempts keep failing falls back to blocking write locks on its path, so
+ * it cannot starve. Full nodes are split on the way down, so a split never has to travel
+ * back up the tree.
+ *
+ * <p>Range iteration is weakly consistent, like ConcurrentSkipListMap: it never fails or
+ * returns a key twice, but may miss entries added while it runs. Entries cannot be removed.
+ */
+class ConcurrentOrderedIndex<K, V> {
+    private static final int NODE_CAPACITY = 64;
+    private static final int OPTIMISTIC_ATTEMPTS = 8;
+    private static final Object RETRY = new Object();
+
+    private final ToIntFunction<? super K> prefixOf;
+    private final Comparator<? super K> tieBreaker;
+    private final LongAdder size = new LongAdder();
+    private volatile Node root = new Node(true);
+
+    ConcurrentOrderedIndex(ToIntFunction<? super K> prefixOf, Comparator<? super K> tieBreaker) {
+        this.prefixOf = prefixOf;
+        this.tieBreaker = tieBreaker;
+    }
+
+    private static final class Node {
+        final StampedLock lock = new StampedLock();
+        final boolean leaf;
+        final int[] prefixes = new int[NODE_CAPACITY];
+        final Object[] keys = new Object[NODE_CAPACITY];
+        final Object[] values;   // Leaves only
+        final Node[] children;   // Inner nodes only: children[i] holds keys below keys[i]
+        int count;
+        Node next;               // Next leaf to the right
+
+        Node(boolean leaf) {
+            this.leaf = leaf;
+            this.values = leaf ? new Object[NODE_CAPACITY] : null;
+            this.children = leaf ? null : new Node[NODE_CAPACITY + 1];
+        }
+    }
+
+    /** Adds or replaces the value for key and returns the previous value, or null. */
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        int prefix = prefixOf.applyAsInt(key);
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            Object previous = tryPut(prefix, key, value);
+            if (previous != RETRY) {
+                return (V) previous;
+            }
+            Thread.yield(); // Another writer changed the path; let it finish
+        }
+        // Busy writers keep invalidating this one's stamps; queue for the locks instead
+        for (;;) {
+            Object previous = tryPutLocked(prefix, key, value);
+            if (previous != RETRY) {
+                return (V) previous;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        int prefix = prefixOf.applyAsInt(key);
+        long[] stamp = new long[1];
+        for (;;) {
+            Node leaf = findLeaf(prefix, key, stamp);
+            try {
+                int n = leaf.count;
+                int i = lowerBound(leaf, n, prefix, key);
+                Object value = i < n && compare(leaf.prefixes[i], leaf.keys[i], prefix, key) == 0
+                        ? leaf.values[i] : null;
+                if (leaf.lock.validate(stamp[0])) {
+                    return (V) value;
+                }
+            } catch (RuntimeException e) {
+                if (leaf.lock.validate(stamp[0])) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public long size() {
+        return size.sum();
+    }
+
+    public K firstKey() {
+        Iterator<Map.Entry<K, V>> it = range(null, null).iterator();
+        if (!it.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return it.next().getKey();
+    }
+
+    @SuppressWarnings("unchecked")
+    public K lastKey() {
+        for (;;) {
+            Node node = root;
+            long stamp = node.lock.tryOptimisticRead();
+            while (stamp != 0 && !node.leaf) {
+                Node child = node.children[node.count];
+                long childStamp = child == null ? 0 : child.lock.tryOptimisticRead();
+                stamp = node.lock.validate(stamp) ? childStamp : 0;
+                node = child;
+            }
+            if (stamp == 0) {
+                Thread.yield();
+                continue;
+            }
+            int n = node.count;
+            Object key = n > 0 ? node.keys[n - 1] : null;
+            if (node.lock.validate(stamp)) {
+                if (key == null) {
+                    throw new NoSuchElementException();
+                }
+                return (K) key;
+            }
+        }
+    }
+
+    /** Entries from fromInclusive up to toExclusive in key order; a null bound means unbounded. */
+    public Iterable<Map.Entry<K, V>> range(K fromInclusive, K toExclusive) {
+        int fromPrefix = fromInclusive == null ? Integer.MIN_VALUE : prefixOf.applyAsInt(fromInclusive);
+        return () -> toExclusive == null
+                ? new RangeIterator(fromPrefix, fromInclusive, 0, null, false)
+                : new RangeIterator(fromPrefix, fromInclusive, prefixOf.applyAsInt(toExclusive), toExclusive, true);
+    }
+
+    /** Entries whose prefix is at least fromInclusive and below toExclusive, e.g. everyone aged 30 to 39. */
+    public Iterable<Map.Entry<K, V>> rangeOfPrefix(int fromInclusive, int toExclusive) {
+        return () -> new RangeIterator(fromInclusive, null, toExclusive, null, true);
+    }
+
+    // ---- Tree walking ----
+
+    // A null key stands for "before every key with this prefix", which is how prefix-only bounds are expressed
+    @SuppressWarnings("unchecked")
+    private int compare(int prefixA, Object keyA, int prefixB, Object keyB) {
+        int c = Integer.compare(prefixA, prefixB);
+        if (c != 0 || keyA == keyB) {
+            return c;
+        }
+        if (keyA == null) {
+            return -1;
+        }
+        if (keyB == null) {
+            return 1;
+        }
+        return tieBreaker.compare((K) keyA, (K) keyB);
+    }
+
+    // First position whose key is >= (prefix, key)
+    private int lowerBound(Node node, int n, int prefix, Object key) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(node.prefixes[mid], node.keys[mid], prefix, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // First position whose key is > (prefix, key); in an inner node, the child to descend into
+    private int upperBound(Node node, int n, int prefix, Object key) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(node.prefixes[mid], node.keys[mid], prefix, key) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Optimistic descent to the leaf that covers (prefix, key); its stamp is returned in stampOut.
+    // A child's stamp is taken before its parent is validated, so the child was the right one at that moment.
+    private Node findLeaf(int prefix, Object key, long[] stampOut) {
+        for (;;) {
+            Node node = root;
+            long stamp = node.lock.tryOptimisticRead();
+            if (stamp != 0 && node == root) {
+                try {
+                    while (stamp != 0 && !node.leaf) {
+                        Node child = node.children[upperBound(node, node.count, prefix, key)];
+                        long childStamp = child == null ? 0 : child.lock.tryOptimisticRead();
+                        stamp = node.lock.validate(stamp) ? childStamp : 0;
+                        node = child;
+                    }
+                    if (stamp != 0) {
+                        stampOut[0] = stamp;
+                        return node;
+                    }
+                } catch (RuntimeException e) {
+                    // Keys read while a writer was moving them can be inconsistent; only a validated read counts
+                    if (node.lock.validate(stamp)) {
+                        throw e;
+                    }
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    private Object tryPut(int prefix, K key, V value) {
+        Node node = root;
+        long stamp = node.lock.tryOptimisticRead();
+        if (stamp == 0 || node != root) {
+            return RETRY;
+        }
+        Node parent = null;
+        long parentStamp = 0;
+        try {
+            for (;;) {
+                if (node.count == NODE_CAPACITY) {
+                    trySplit(parent, parentStamp, node, stamp);
+                    return RETRY; // Start over in the tree as it is now
+                }
+                if (node.leaf) {
+                    break;
+                }
+                Node child = node.children[upperBound(node, node.count, prefix, key)];
+                long childStamp = child == null ? 0 : child.lock.tryOptimisticRead();
+                if (childStamp == 0 || !node.lock.validate(stamp)) {
+                    return RETRY;
+                }
+                parent = node;
+                parentStamp = stamp;
+                node = child;
+                stamp = childStamp;
+            }
+        } catch (RuntimeException e) {
+            if (node.lock.validate(stamp)) {
+                throw e;
+            }
+            return RETRY;
+        }
+
+        // The leaf is still unchanged since it was read, so it is still the leaf for this key
+        long write = node.lock.tryConvertToWriteLock(stamp);
+        if (write == 0) {
+            return RETRY;
+        }
+        try {
+            return insert(node, prefix, key, value);
+        } finally {
+            node.lock.unlockWrite(write);
+        }
+    }
+
+    // The pessimistic fallback: write-locks the path from the root down, keeping a parent locked
+    // only until its child is known to have room. Locks are only ever waited for top-down and
+    // optimistic writers never wait, so this cannot deadlock. Retries only when the root changes.
+    private Object tryPutLocked(int prefix, K key, V value) {
+        Node node = root;
+        long write = node.lock.writeLock();
+        Node parent = null;
+        long parentWrite = 0;
+        try {
+            if (node != root) {
+                return RETRY; // The root was split while this thread waited for it
+            }
+            for (;;) {
+                if (node.count == NODE_CAPACITY) {
+                    split(parent, node);
+                    if (parent == null) {
+                        return RETRY; // The new root is not locked; start again from it
+                    }
+                    Node half = parent.children[upperBound(parent, parent.count, prefix, key)];
+                    if (half != node) {
+                        // Writers only reach the new right half through the locked parent
+                        long halfWrite = half.lock.writeLock();
+                        node.lock.unlockWrite(write);
+                        node = half;
+                        write = halfWrite;
+                    }
+                }
+                if (parent != null) {
+                    parent.lock.unlockWrite(parentWrite);
+                    parent = null;
+                }
+                if (node.leaf) {
+                    return insert(node, prefix, key, value);
+                }
+                Node child = node.children[upperBound(node, node.count, prefix, key)];
+                long childWrite = child.lock.writeLock();
+                parent = node;
+                parentWrite = write;
+                node = child;
+                write = childWrite;
+            }
+        } finally {
+            node.lock.unlockWrite(write);
+            if (parent != null) {
+                parent.lock.unlockWrite(parentWrite);
+            }
+        }
+    }
+
+    // Adds or replaces the entry in a write-locked leaf that has room
+    private Object insert(Node leaf, int prefix, K key, V value) {
+        int n = leaf.count;
+        int i = lowerBound(leaf, n, prefix, key);
+        if (i < n && compare(leaf.prefixes[i], leaf.keys[i], prefix, key) == 0) {
+            Object previous = leaf.values[i];
+            leaf.values[i] = value;
+            return previous;
+        }
+        System.arraycopy(leaf.prefixes, i, leaf.prefixes, i + 1, n - i);
+        System.arraycopy(leaf.keys, i, leaf.keys, i + 1, n - i);
+        System.arraycopy(leaf.values, i, leaf.values, i + 1, n - i);
+        leaf.prefixes[i] = prefix;
+        leaf.keys[i] = key;
+        leaf.values[i] = value;
+        leaf.count = n + 1;
+        size.increment();
+        return null;
+    }
+
+    // Splits a full node under its optimistic stamps; gives up quietly if either node changed
+    private void trySplit(Node parent, long parentStamp, Node node, long stamp) {
+        long parentWrite = 0;
+        if (parent != null && (parentWrite = parent.lock.tryConvertToWriteLock(parentStamp)) == 0) {
+            return;
+        }
+        long write = node.lock.tryConvertToWriteLock(stamp);
+        if (write == 0) {
+            if (parent != null) {
+                parent.lock.unlockWrite(parentWrite);
+            }
+            return;
+        }
+        try {
+            split(parent, node);
+        } finally {
+            node.lock.unlockWrite(write);
+            if (parent != null) {
+                parent.lock.unlockWrite(parentWrite);
+            }
+        }
+    }
+
+    // Splits a full, write-locked node in half and adds the separator to its write-locked parent,
+    // which has room because full nodes are split on the way down. A null parent means a new root.
+    private void split(Node parent, Node node) {
+        Node right = new Node(node.leaf);
+        int n = node.count;
+        int mid = n / 2;
+        int separatorPrefix;
+        Object separator;
+        if (node.leaf) {
+            // The right half keeps its first key; it becomes the separator
+            int moved = n - mid;
+            System.arraycopy(node.prefixes, mid, right.prefixes, 0, moved);
+            System.arraycopy(node.keys, mid, right.keys, 0, moved);
+            System.arraycopy(node.values, mid, right.values, 0, moved);
+            Arrays.fill(node.keys, mid, n, null);
+            Arrays.fill(node.values, mid, n, null);
+            right.count = moved;
+            right.next = node.next;
+            node.next = right;
+            separatorPrefix = right.prefixes[0];
+            separator = right.keys[0];
+        } else {
+            // The middle key moves up to the parent
+            int moved = n - mid - 1;
+            System.arraycopy(node.prefixes, mid + 1, right.prefixes, 0, moved);
+            System.arraycopy(node.keys, mid + 1, right.keys, 0, moved);
+            System.arraycopy(node.children, mid + 1, right.children, 0, moved + 1);
+            separatorPrefix = node.prefixes[mid];
+            separator = node.keys[mid];
+            Arrays.fill(node.keys, mid, n, null);
+            Arrays.fill(node.children, mid + 1, n + 1, null);
+            right.count = moved;
+        }
+        node.count = mid;
+
+        if (parent == null) {
+            Node newRoot = new Node(false);
+            newRoot.prefixes[0] = separatorPrefix;
+            newRoot.keys[0] = separator;
+            newRoot.children[0] = node;
+            newRoot.children[1] = right;
+            newRoot.count = 1;
+            root = newRoot;
+        } else {
+            int pn = parent.count;
+            int pos = 0;
+            while (parent.children[pos] != node) {
+                pos++;
+            }
+            System.arraycopy(parent.prefixes, pos, parent.prefixes, pos + 1, pn - pos);
+            System.arraycopy(parent.keys, pos, parent.keys, pos + 1, pn - pos);
+            System.arraycopy(parent.children, pos + 1, parent.children, pos + 2, pn - pos);
+            parent.prefixes[pos] = separatorPrefix;
+            parent.keys[pos] = separator;
+            parent.children[pos + 1] = right;
+            parent.count = pn + 1;
+        }
+    }
+
+    // Copies one leaf at a time under an optimistic stamp, then follows the leaf links.
+    // If a leaf changed while being copied, it finds its place again from the root,
+    // continuing after the last key it returned.
+    private final class RangeIterator implements Iterator<Map.Entry<K, V>> {
+        private int fromPrefix;
+        private Object fromKey;
+        private boolean fromInclusive = true;
+        private final int toPrefix;
+        private final Object toKey;
+        private final boolean bounded;
+
+        private final Object[] bufferedKeys = new Object[NODE_CAPACITY];
+        private final Object[] bufferedValues = new Object[NODE_CAPACITY];
+        private int buffered;
+        private int position;
+        private Node nextLeaf;
+        private boolean done;
+        private final long[] stamp = new long[1];
+
+        RangeIterator(int fromPrefix, Object fromKey, int toPrefix, Object toKey, boolean bounded) {
+            this.fromPrefix = fromPrefix;
+            this.fromKey = fromKey;
+            this.toPrefix = toPrefix;
+            this.toKey = toKey;
+            this.bounded = bounded;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < buffered || refill();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int i = position++;
+            return new AbstractMap.SimpleImmutableEntry<>((K) bufferedKeys[i], (V) bufferedValues[i]);
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean refill() {
+            position = 0;
+            while (!done) {
+                Node leaf = nextLeaf;
+                long leafStamp = leaf == null ? 0 : leaf.lock.tryOptimisticRead();
+                if (leafStamp == 0) {
+                    leaf = findLeaf(fromPrefix, fromKey, stamp);
+                    leafStamp = stamp[0];
+                }
+                boolean reachedEnd = false;
+                Node next = null;
+                buffered = 0;
+                try {
+                    int n = leaf.count;
+                    int i = fromInclusive
+                            ? lowerBound(leaf, n, fromPrefix, fromKey)
+                            : upperBound(leaf, n, fromPrefix, fromKey);
+                    for (; i < n; i++) {
+                        int prefix = leaf.prefixes[i];
+                        Object key = leaf.keys[i];
+                        if (bounded && compare(prefix, key, toPrefix, toKey) >= 0) {
+                            reachedEnd = true;
+                            break;
+                        }
+                        bufferedKeys[buffered] = key;
+                        bufferedValues[buffered++] = leaf.values[i];
+                    }
+                    next = leaf.next;
+                } catch (RuntimeException e) {
+                    if (leaf.lock.validate(leafStamp)) {
+                        throw e;
+                    }
+                }
+                if (!leaf.lock.validate(leafStamp)) {
+                    nextLeaf = null; // Find the way back in from the root
+                    continue;
+                }
+                if (buffered > 0) {
+                    K last = (K) bufferedKeys[buffered - 1];
+                    fromPrefix = prefixOf.applyAsInt(last);
+                    fromKey = last;
+                    fromInclusive = false;
+                }
+                nextLeaf = next;
+                done = reachedEnd || next == null;
+                if (buffered > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
+
+/**
+ * Inserts and range scans from several threads, comparing ConcurrentOrderedIndex with
+ * ConcurrentSkipListMap and a TreeMap behind a lock.
+ * Prints CSV: structure,threads,operation,millis. The key count can be passed as the first argument.
+ */
+class IndexBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random random = new Random(42);
+        Person[] people = new Person[count];
+        for (int i = 0; i < count; i++) {
+            people[i] = new Person("Person" + i, random.nextInt(100));
+        }
+
+        run(Arrays.copyOf(people, count / 10), 1, false); // Warm-up
+        System.out.println("structure,threads,operation,millis");
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            run(people, threads, true);
+        }
+    }
+
+    private static void run(Person[] people, int threads, boolean print) throws Exception {
+        Comparator<Person> byAgeThenName = Comparator.comparingInt((Person p) -> p.age).thenComparing(p -> p.name);
+        ConcurrentOrderedIndex<Person, Person> index =
+                new ConcurrentOrderedIndex<>(p -> p.age, Comparator.comparing((Person p) -> p.name));
+        time("ConcurrentOrderedIndex", threads, "insert", people, 1, print, p -> index.put(p, p));
+        time("ConcurrentOrderedIndex", threads, "scan", people, 10, print, p -> {
+            long found = 0;
+            for (Map.Entry<Person, Person> ignored : index.rangeOfPrefix(p.age, p.age + 1)) {
+                if (++found == 100) break;
+            }
+        });
+
+        ConcurrentSkipListMap<Person, Person> skipList = new ConcurrentSkipListMap<>(byAgeThenName);
+        time("ConcurrentSkipListMap", threads, "insert", people, 1, print, p -> skipList.put(p, p));
+        time("ConcurrentSkipListMap", threads, "scan", people, 10, print, p -> {
+            long found = 0;
+            for (Person ignored : skipList.subMap(new Person("", p.age), new Person("", p.age + 1)).keySet()) {
+                if (++found == 100) break;
+            }
+        });
+
+        NavigableMap<Person, Person> treeMap = new TreeMap<>(byAgeThenName);
+        time("TreeMap (synchronized)", threads, "insert", people, 1, print, p -> {
+            synchronized (treeMap) {
+                treeMap.put(p, p);
+            }
+        });
+        time("TreeMap (synchronized)", threads, "scan", people, 10, print, p -> {
+            long found = 0;
+            synchronized (treeMap) {
+                for (Person ignored : treeMap.subMap(new Person("", p.age), new Person("", p.age + 1)).keySet()) {
+                    if (++found == 100) break;
+                }
+            }
+        });
+    }
+
+    // Splits the people evenly across the threads; each thread runs the operation for every step-th person.
+    // Scans read the first 100 entries with the person's age.
+    private static void time(String structure, int threads, String operation, Person[] people, int step,
+                             boolean print, Consumer<Person> action) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> parts = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int from = (int) ((long) people.length * t / threads);
+                int to = (int) ((long) people.length * (t + 1) / threads);
+                parts.add(pool.submit(() -> {
+                    for (int i = from; i < to; i += step) {
+                        action.accept(people[i]);
+                    }
+                }));
+            }
+            for (Future<?> part : parts) {
+                part.get();
+            }
+            if (print) {
+                System.out.printf(Locale.ROOT, "%s,%d,%s,%.2f%n", structure, threads, operation,
+                        (System.nanoTime() - start) / 1e6);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
+
+/**
+ * A hash map from objects to primitive ints. Keys, their hash codes and values sit in
+ * parallel arrays with open addressing (linear probing), so there are no entry nodes and
+ * no boxed Integers, and getInt, put, addTo and forEach allocate nothing once the arrays
+ * are sized. Probing compares the stored hash codes first and only touches key objects
+ * that are likely to match. Missing keys read as 0.
+ *
+ * <p>With {@code indexValues} set, the map also links together all slots holding the same
+ * value and keeps a small table from each value to the first such slot. containsValue and
+ * forEachKeyWithValue then take time proportional to the answer instead of the map size,
+ * at the cost of two more int arrays and slower updates.
+ */
+class ObjectIntMap<K> {
+    private static final int MIN_CAPACITY = 8;
+    private static final int NO_SLOT = -1;
+
+    private Object[] keys;
+    private int[] hashes;
+    private int[] values;
+    private int mask;
+    private int shift; // 32 - log2(capacity)
+    private int size;
+
+    private final boolean indexValues;
+    private int[] nextWithValue;   // Per slot: next and previous slot holding the same value
+    private int[] previousWithValue;
+    private IntIntTable firstWithValue;
+
+    ObjectIntMap() {
+        this(false);
+    }
+
+    ObjectIntMap(boolean indexValues) {
+        this.indexValues = indexValues;
+        allocate(MIN_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getInt(Object key) {
+        return getOrDefault(key, 0);
+    }
+
+    public int getOrDefault(Object key, int defaultValue) {
+        int slot = find(key);
+        return slot == NO_SLOT ? defaultValue : values[slot];
+    }
+
+    public boolean containsKey(Object key) {
+        return find(key) != NO_SLOT;
+    }
+
+    /** Sets the value for key and returns the previous value, or 0 if there was none. */
+    public int put(K key, int value) {
+        int slot = findOrInsert(key);
+        int previous = values[slot];
+        setValue(slot, previous, value);
+        return previous;
+    }
+
+    /** Adds delta to the value for key (starting from 0) and returns the new value. */
+    public int addTo(K key, int delta) {
+        int slot = findOrInsert(key);
+        int previous = values[slot];
+        setValue(slot, previous, previous + delta);
+        return previous + delta;
+    }
+
+    /** Removes key and returns its value, or 0 if it was not present. */
+    public int remove(Object key) {
+        int slot = find(key);
+        if (slot == NO_SLOT) {
+            return 0;
+        }
+        int value = values[slot];
+        if (indexValues) {
+            unlink(slot, value);
+        }
+        size--;
+        // Backward-shift deletion: pull later entries of the probe run into the gap, so no tombstones are needed
+        int gap = slot;
+        for (int i = (gap + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            int home = hashes[i] >>> shift;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                hashes[gap] = hashes[i];
+                values[gap] = values[i];
+                if (indexValues) {
+                    move(i, gap);
+                }
+                gap = i;
+            }
+        }
+        keys[gap] = null;
+        values[gap] = 0;
+        return value;
+    }
+
+    public boolean containsValue(int value) {
+        if (indexValues) {
+            return firstWithValue.get(value) != NO_SLOT;
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null && values[slot] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEachKeyWithValue(int value, Consumer<? super K> action) {
+        if (indexValues) {
+            for (int slot = firstWithValue.get(value); slot != NO_SLOT; slot = nextWithValue[slot]) {
+                action.accept((K) keys[slot]);
+            }
+            return;
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null && values[slot] == value) {
+                action.accept((K) keys[slot]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(ObjIntConsumer<? super K> action) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null) {
+                action.accept((K) keys[slot], values[slot]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "{", "}");
+        forEach((key, value) -> joiner.add(key + "=" + value));
+        return joiner.toString();
+    }
+
+    // Fibonacci hashing: the top bits of the product, used as the home slot, depend on every bit of the hash code
+    private static int hash(Object key) {
+        return key.hashCode() * 0x9E3779B9;
+    }
+
+    private int find(Object key) {
+        int hash = hash(key);
+        for (int slot = hash >>> shift; ; slot = (slot + 1) & mask) {
+            Object k = keys[slot];
+            if (k == null) {
+                return NO_SLOT;
+            }
+            if (k == key || (hashes[slot] == hash && k.equals(key))) {
+                return slot;
+            }
+        }
+    }
+
+    // New keys start with value 0, already linked into the value index
+    private int findOrInsert(K key) {
+        int hash = hash(key);
+        for (int slot = hash >>> shift; ; slot = (slot + 1) & mask) {
+            Object k = keys[slot];
+            if (k == null) {
+                if (size + 1 > keys.length * 3 / 4) {
+                    resize(keys.length * 2);
+                    return findOrInsert(key);
+                }
+                keys[slot] = key;
+                hashes[slot] = hash;
+                size++;
+                if (indexValues) {
+                    link(slot, 0);
+                }
+                return slot;
+            }
+            if (k == key || (hashes[slot] == hash && k.equals(key))) {
+                return slot;
+            }
+        }
+    }
+
+    private void setValue(int slot, int previous, int value) {
+        if (indexValues && previous != value) {
+            unlink(slot, previous);
+            link(slot, value);
+        }
+        values[slot] = value;
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        hashes = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+        if (indexValues) {
+            nextWithValue = new int[capacity];
+            previousWithValue = new int[capacity];
+            firstWithValue = new IntIntTable();
+        }
+    }
+
+    private void resize(int capacity) {
+        Object[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            Object key = oldKeys[i];
+            if (key != null) {
+                int slot = oldHashes[i] >>> shift;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                hashes[slot] = oldHashes[i];
+                values[slot] = oldValues[i];
+                if (indexValues) {
+                    link(slot, oldValues[i]);
+                }
+            }
+        }
+    }
+
+    // ---- Value index: a doubly linked list of slots per value ----
+
+    private void link(int slot, int value) {
+        int first = firstWithValue.get(value);
+        nextWithValue[slot] = first;
+        previousWithValue[slot] = NO_SLOT;
+        if (first != NO_SLOT) {
+            previousWithValue[first] = slot;
+        }
+        firstWithValue.put(value, slot);
+    }
+
+    private void unlink(int slot, int value) {
+        int previous = previousWithValue[slot];
+        int next = nextWithValue[slot];
+        if (previous != NO_SLOT) {
+            nextWithValue[previous] = next;
+        } else if (next != NO_SLOT) {
+            firstWithValue.put(value, next);
+        } else {
+            firstWithValue.remove(value);
+        }
+        if (next != NO_SLOT) {
+            previousWithValue[next] = previous;
+        }
+    }
+
+    // The entry at from has moved to to (keys and values are already copied)
+    private void move(int from, int to) {
+        int previous = previousWithValue[from];
+        int next = nextWithValue[from];
+        previousWithValue[to] = previous;
+        nextWithValue[to] = next;
+        if (previous != NO_SLOT) {
+            nextWithValue[previous] = to;
+        } else {
+            firstWithValue.put(values[to], to);
+        }
+        if (next != NO_SLOT) {
+            previousWithValue[next] = to;
+        }
+    }
+
+    /** Open-addressing int to int table; absent keys read as NO_SLOT. */
+    private static final class IntIntTable {
+        private int[] keys = new int[MIN_CAPACITY];
+        private int[] values = new int[MIN_CAPACITY];
+        private boolean[] used = new boolean[MIN_CAPACITY];
+        private int mask = MIN_CAPACITY - 1;
+        private int shift = Integer.numberOfLeadingZeros(MIN_CAPACITY) + 1;
+        private int size;
+
+        private int slotOf(int key) {
+            return (key * 0x9E3779B9) >>> shift;
+        }
+
+        int get(int key) {
+            for (int slot = slotOf(key); used[slot]; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return NO_SLOT;
+        }
+
+        void put(int key, int value) {
+            int slot = slotOf(key);
+            for (; used[slot]; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    values[slot] = value;
+                    return;
+                }
+            }
+            if (size + 1 > keys.length * 3 / 4) {
+                grow();
+                put(key, value);
+                return;
+            }
+            used[slot] = true;
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+
+        void remove(int key) {
+            int gap = slotOf(key);
+            while (used[gap] && keys[gap] != key) {
+                gap = (gap + 1) & mask;
+            }
+            if (!used[gap]) {
+                return;
+            }
+            size--;
+            for (int i = (gap + 1) & mask; used[i]; i = (i + 1) & mask) {
+                if (((i - slotOf(keys[i])) & mask) >= ((i - gap) & mask)) {
+                    keys[gap] = keys[i];
+                    values[gap] = values[i];
+                    gap = i;
+                }
+            }
+            used[gap] = false;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            mask = keys.length - 1;
+            shift = Integer.numberOfLeadingZeros(keys.length) + 1;
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Heap used per entry and put/get time for HashMap<String, Integer> and ObjectIntMap<String>.
+ * The key strings are created up front and shared, so only the maps themselves are measured.
+ * Prints CSV: structure,entries,bytes_per_entry,put_millis,get_millis. The entry count can be
+ * passed as the first argument; 10M entries need a heap of about 3 GB (-Xmx3g).
+ */
+class ObjectIntMapBenchmark {
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        String[] names = new String[count];
+        int[] scores = new int[count];
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            names[i] = "Student" + i;
+            scores[i] = random.nextInt(1_000_000); // Mostly outside the Integer cache, as real counters would be
+        }
+        // Look keys up in random order; sequential names would have sequential hash codes
+        List<String> lookups = new ArrayList<>(Arrays.asList(names));
+        Collections.shuffle(lookups, random);
+
+        System.out.println("structure,entries,bytes_per_entry,put_millis,get_millis");
+        long before = usedHeap();
+        long start = System.nanoTime();
+        Map<String, Integer> hashMap = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            hashMap.put(names[i], scores[i]);
+        }
+        long putNanos = System.nanoTime() - start;
+        long bytes = usedHeap() - before;
+        start = System.nanoTime();
+        long sum = 0;
+        for (String name : lookups) {
+            sum += hashMap.get(name);
+        }
+        report("HashMap<String, Integer>", count, bytes, putNanos, System.nanoTime() - start, sum);
+        hashMap = null;
+
+        for (boolean indexValues : new boolean[] {false, true}) {
+            before = usedHeap();
+            start = System.nanoTime();
+            ObjectIntMap<String> map = new ObjectIntMap<>(indexValues);
+            for (int i = 0; i < count; i++) {
+                map.put(names[i], scores[i]);
+            }
+            putNanos = System.nanoTime() - start;
+            bytes = usedHeap() - before;
+            start = System.nanoTime();
+            sum = 0;
+            for (String name : lookups) {
+                sum += map.getInt(name);
+            }
+            report(indexValues ? "ObjectIntMap<String> (value index)" : "ObjectIntMap<String>",
+                    count, bytes, putNanos, System.nanoTime() - start, sum);
+            map = null;
+        }
+    }
+
+    private static void report(String structure, int count, long bytes, long putNanos, long getNanos, long checksum) {
+        System.out.printf(Locale.ROOT, "%s,%d,%.1f,%.2f,%.2f%n", structure, count, (double) bytes / count,
+                putNanos / 1e6, getNanos / 1e6);
+        if (checksum == Long.MIN_VALUE) {
+            System.out.println(); // Keep the lookups alive
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+/**
+ * A growable array used as a ring, usable both as a List and as a Deque.
+ * Adding or removing at either end is amortized O(1) and get/set by index are O(1),
+ * with no node per element as in LinkedList. Inserting or removing in the middle
+ * shifts whichever side of the index is shorter.
+ *
+ * <p>Like ArrayDeque, it does not accept null elements, so poll and peek can use null
+ * to mean "empty". drainTo moves a batch from the head into another collection with
+ * at most two array copies. reversed returns a live view that swaps the two ends.
+ */
+class CircularArrayDeque<E> extends AbstractList<E> implements Deque<E>, RandomAccess {
+    private static final int MIN_CAPACITY = 8;
+
+    private Object[] elements;
+    private int head;
+    private int size;
+
+    CircularArrayDeque() {
+        this(MIN_CAPACITY);
+    }
+
+    CircularArrayDeque(int initialCapacity) {
+        elements = new Object[Integer.highestOneBit(Math.max(MIN_CAPACITY, initialCapacity) * 2 - 1)];
+    }
+
+    CircularArrayDeque(Collection<? extends E> c) {
+        this(c.size());
+        addAll(c);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // ---- List ----
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        Objects.checkIndex(index, size);
+        return (E) elements[slot(index)];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int index, E element) {
+        Objects.checkIndex(index, size);
+        Objects.requireNonNull(element);
+        int slot = slot(index);
+        E previous = (E) elements[slot];
+        elements[slot] = element;
+        return previous;
+    }
+
+    @Override
+    public boolean add(E element) {
+        addLast(element);
+        return true;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        Objects.checkIndex(index, size + 1);
+        Objects.requireNonNull(element);
+        if (size == elements.length) {
+            grow(size + 1);
+        }
+        int mask = elements.length - 1;
+        if (index < size / 2) {
+            // Move the elements before index one step towards the front
+            head = (head - 1) & mask;
+            for (int i = 0; i < index; i++) {
+                elements[(head + i) & mask] = elements[(head + i + 1) & mask];
+            }
+        } else {
+            // Move the elements from index on one step towards the back
+            for (int i = size; i > index; i--) {
+                elements[(head + i) & mask] = elements[(head + i - 1) & mask];
+            }
+        }
+        elements[(head + index) & mask] = element;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        Object[] added = c.toArray();
+        if (added.length == 0) {
+            return false;
+        }
+        for (Object element : added) {
+            Objects.requireNonNull(element);
+        }
+        if (size + added.length > elements.length) {
+            grow(size + added.length);
+        }
+        // Copy into the free space after the tail, wrapping around at most once
+        int tail = slot(size);
+        int firstPart = Math.min(added.length, elements.length - tail);
+        System.arraycopy(added, 0, elements, tail, firstPart);
+        System.arraycopy(added, firstPart, elements, 0, added.length - firstPart);
+        size += added.length;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove(int index) {
+        Objects.checkIndex(index, size);
+        int mask = elements.length - 1;
+        E removed = (E) elements[(head + index) & mask];
+        if (index < size / 2) {
+            for (int i = index; i > 0; i--) {
+                elements[(head + i) & mask] = elements[(head + i - 1) & mask];
+            }
+            elements[head] = null;
+            head = (head + 1) & mask;
+        } else {
+            for (int i = index; i < size - 1; i++) {
+                elements[(head + i) & mask] = elements[(head + i + 1) & mask];
+            }
+            elements[(head + size - 1) & mask] = null;
+        }
+        size--;
+        modCount++;
+        return removed;
+    }
+
+    // Used by clear() and subList(...).clear(); shifts the shorter side across the gap
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        int count = toIndex - fromIndex;
+        if (count <= 0) {
+            return;
+        }
+        int mask = elements.length - 1;
+        if (fromIndex < size - toIndex) {
+            for (int i = fromIndex - 1; i >= 0; i--) {
+                elements[(head + i + count) & mask] = elements[(head + i) & mask];
+            }
+            for (int i = 0; i < count; i++) {
+                elements[(head + i) & mask] = null;
+            }
+            head = (head + count) & mask;
+        } else {
+            for (int i = toIndex; i < size; i++) {
+                elements[(head + i - count) & mask] = elements[(head + i) & mask];
+            }
+            for (int i = size - count; i < size; i++) {
+                elements[(head + i) & mask] = null;
+            }
+        }
+        size -= count;
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        removeRange(0, size);
+        head = 0;
+    }
+
+    // ---- Deque ----
+
+    @Override
+    public void addFirst(E element) {
+        Objects.requireNonNull(element);
+        if (size == elements.length) {
+            grow(size + 1);
+        }
+        head = (head - 1) & (elements.length - 1);
+        elements[head] = element;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public void addLast(E element) {
+        Objects.requireNonNull(element);
+        if (size == elements.length) {
+            grow(size + 1);
+        }
+        elements[slot(size)] = element;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public boolean offerFirst(E element) {
+        addFirst(element);
+        return true;
+    }
+
+    @Override
+    public boolean offerLast(E element) {
+        addLast(element);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E pollFirst() {
+        if (size == 0) {
+            return null;
+        }
+        E first = (E) elements[head];
+        elements[head] = null;
+        head = (head + 1) & (elements.length - 1);
+        size--;
+        modCount++;
+        return first;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E pollLast() {
+        if (size == 0) {
+            return null;
+        }
+        int slot = slot(size - 1);
+        E last = (E) elements[slot];
+        elements[slot] = null;
+        size--;
+        modCount++;
+        return last;
+    }
+
+    @Override
+    public E removeFirst() {
+        E first = pollFirst();
+        if (first == null) {
+            throw new NoSuchElementException();
+        }
+        return first;
+    }
+
+    @Override
+    public E removeLast() {
+        E last = pollLast();
+        if (last == null) {
+            throw new NoSuchElementException();
+        }
+        return last;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peekFirst() {
+        return size == 0 ? null : (E) elements[head];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peekLast() {
+        return size == 0 ? null : (E) elements[slot(size - 1)];
+    }
+
+    @Override
+    public E getFirst() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return peekFirst();
+    }
+
+    @Override
+    public E getLast() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return peekLast();
+    }
+
+    @Override
+    public boolean removeFirstOccurrence(Object o) {
+        int index = indexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    public boolean removeLastOccurrence(Object o) {
+        int index = lastIndexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    public boolean offer(E element) {
+        addLast(element);
+        return true;
+    }
+
+    @Override
+    public E remove() {
+        return removeFirst();
+    }
+
+    @Override
+    public E poll() {
+        return pollFirst();
+    }
+
+    @Override
+    public E element() {
+        return getFirst();
+    }
+
+    @Override
+    public E peek() {
+        return peekFirst();
+    }
+
+    @Override
+    public void push(E element) {
+        addFirst(element);
+    }
+
+    @Override
+    public E pop() {
+        return removeFirst();
+    }
+
+    @Override
+    public Iterator<E> descendingIterator() {
+        ListIterator<E> it = listIterator(size);
+        return new Iterator<E>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasPrevious();
+            }
+
+            @Override
+            public E next() {
+                return it.previous();
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+            }
+        };
+    }
+
+    // ---- Batch drain ----
+
+    /** Removes up to maxElements from the head, in order, into target. Returns how many were moved. */
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super E> target, int maxElements) {
+        int count = Math.min(maxElements, size);
+        if (count <= 0) {
+            return 0;
+        }
+        // The batch is at most two contiguous runs of the array; each is handed over as one addAll
+        List<E> all = Arrays.asList((E[]) elements);
+        int firstPart = Math.min(count, elements.length - head);
+        target.addAll(all.subList(head, head + firstPart));
+        target.addAll(all.subList(0, count - firstPart));
+        removeRange(0, count);
+        return count;
+    }
+
+    public int drainTo(Collection<? super E> target) {
+        return drainTo(target, size);
+    }
+
+    // ---- Reversed view ----
+
+    /**
+     * A view of this deque in reverse order; changes to either one show in the other.
+     * Declared without @Override so it compiles before Java 21, where it also overrides
+     * List.reversed and Deque.reversed, whose return types otherwise conflict.
+     */
+    public CircularArrayDeque<E> reversed() {
+        return new ReversedView<>(this);
+    }
+
+    // Maps every operation onto the forward deque, swapping the ends; its own storage stays empty
+    private static final class ReversedView<E> extends CircularArrayDeque<E> {
+        private final CircularArrayDeque<E> forward;
+
+        ReversedView(CircularArrayDeque<E> forward) {
+            super(0);
+            this.forward = forward;
+        }
+
+        private int forwardIndex(int index) {
+            return forward.size - 1 - index;
+        }
+
+        @Override
+        public int size() {
+            return forward.size;
+        }
+
+        @Override
+        public E get(int index) {
+            Objects.checkIndex(index, forward.size);
+            return forward.get(forwardIndex(index));
+        }
+
+        @Override
+        public E set(int index, E element) {
+            Objects.checkIndex(index, forward.size);
+            return forward.set(forwardIndex(index), element);
+        }
+
+        @Override
+        public void add(int index, E element) {
+            Objects.checkIndex(index, forward.size + 1);
+            forward.add(forward.size - index, element);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean addAll(Collection<? extends E> c) {
+            Object[] added = c.toArray();
+            for (Object element : added) {
+                Objects.requireNonNull(element);
+            }
+            for (Object element : added) {
+                forward.addFirst((E) element);
+            }
+            return added.length > 0;
+        }
+
+        @Override
+        public E remove(int index) {
+            Objects.checkIndex(index, forward.size);
+            return forward.remove(forwardIndex(index));
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            forward.removeRange(forward.size - toIndex, forward.size - fromIndex);
+        }
+
+        @Override
+        public void clear() {
+            forward.clear();
+        }
+
+        @Override
+        public ListIterator<E> listIterator(int index) {
+            Objects.checkIndex(index, forward.size + 1);
+            ListIterator<E> it = forward.listIterator(forward.size - index);
+            return new ListIterator<E>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasPrevious();
+                }
+
+                @Override
+                public E next() {
+                    return it.previous();
+                }
+
+                @Override
+                public boolean hasPrevious() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public E previous() {
+                    return it.next();
+                }
+
+                @Override
+                public int nextIndex() {
+                    return forwardIndex(it.previousIndex());
+                }
+
+                @Override
+                public int previousIndex() {
+                    return forwardIndex(it.nextIndex());
+                }
+
+                @Override
+                public void remove() {
+                    it.remove();
+                }
+
+                @Override
+                public void set(E element) {
+                    it.set(element);
+                }
+
+                @Override
+                public void add(E element) {
+                    // Goes in before the forward cursor, so step back over it to keep the reverse order
+                    it.add(element);
+                    it.previous();
+                }
+            };
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return listIterator(0);
+        }
+
+        @Override
+        public void addFirst(E element) {
+            forward.addLast(element);
+        }
+
+        @Override
+        public void addLast(E element) {
+            forward.addFirst(element);
+        }
+
+        @Override
+        public E pollFirst() {
+            return forward.pollLast();
+        }
+
+        @Override
+        public E pollLast() {
+            return forward.pollFirst();
+        }
+
+        @Override
+        public E peekFirst() {
+            return forward.peekLast();
+        }
+
+        @Override
+        public E peekLast() {
+            return forward.peekFirst();
+        }
+
+        @Override
+        public E getFirst() {
+            return forward.getLast();
+        }
+
+        @Override
+        public E getLast() {
+            return forward.getFirst();
+        }
+
+        @Override
+        public Iterator<E> descendingIterator() {
+            return forward.iterator();
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> target, int maxElements) {
+            int count = Math.min(maxElements, forward.size);
+            if (count <= 0) {
+                return 0;
+            }
+            target.addAll(subList(0, count));
+            removeRange(0, count);
+            return count;
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> target) {
+            return drainTo(target, forward.size);
+        }
+
+        @Override
+        public CircularArrayDeque<E> reversed() {
+            return forward;
+        }
+    }
+
+    // ---- Internals ----
+
+    private int slot(int index) {
+        return (head + index) & (elements.length - 1);
+    }
+
+    // Doubles the capacity until it fits, laying the elements out from index 0
+    private void grow(int minCapacity) {
+        int capacity = elements.length;
+        while (capacity < minCapacity) {
+            capacity *= 2;
+            if (capacity <= 0) {
+                throw new OutOfMemoryError("Deque too large");
+            }
+        }
+        Object[] grown = new Object[capacity];
+        int firstPart = Math.min(size, elements.length - head);
+        System.arraycopy(elements, head, grown, 0, firstPart);
+        System.arraycopy(elements, 0, grown, firstPart, size - firstPart);
+        elements = grown;
+        head = 0;
+    }
+}
+
+/**
+ * Queue, stack and random-access workloads on LinkedList, ArrayList, ArrayDeque and
+ * CircularArrayDeque. ArrayDeque has no indexed access, so it skips that workload.
+ * Prints CSV: structure,workload,operations,millis. The operation count can be passed as the first argument.
+ */
+class DequeBenchmark {
+    private static final int QUEUE_LENGTH = 1_000;
+
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Integer[] values = new Integer[operations];
+        for (int i = 0; i < operations; i++) {
+            values[i] = i;
+        }
+        int[] randomIndexes = new Random(42).ints(operations, 0, QUEUE_LENGTH).toArray();
+
+        System.out.println("structure,workload,operations,millis");
+        for (int run = 0; run < 2; run++) { // The first run warms up and is not printed
+            boolean print = run == 1;
+            // List-based queue for ArrayList and LinkedList: add at the end, remove(0) from the front
+            time(print, "LinkedList", "queue", operations, () -> listQueue(new LinkedList<>(), values));
+            time(print, "ArrayList", "queue", operations, () -> listQueue(new ArrayList<>(), values));
+            time(print, "ArrayDeque", "queue", operations, () -> dequeQueue(new ArrayDeque<>(), values));
+            time(print, "CircularArrayDeque", "queue", operations, () -> dequeQueue(new CircularArrayDeque<>(), values));
+
+            time(print, "LinkedList", "stack", operations, () -> dequeStack(new LinkedList<>(), values));
+            time(print, "ArrayDeque", "stack", operations, () -> dequeStack(new ArrayDeque<>(), values));
+            time(print, "CircularArrayDeque", "stack", operations, () -> dequeStack(new CircularArrayDeque<>(), values));
+
+            time(print, "LinkedList", "random-access", operations, () -> randomAccess(new LinkedList<>(), values, randomIndexes));
+            time(print, "ArrayList", "random-access", operations, () -> randomAccess(new ArrayList<>(), values, randomIndexes));
+            time(print, "CircularArrayDeque", "random-access", operations,
+                    () -> randomAccess(new CircularArrayDeque<>(), values, randomIndexes));
+        }
+    }
+
+    // Keeps QUEUE_LENGTH elements queued: every operation adds one at the back and takes one from the front
+    private static long listQueue(List<Integer> queue, Integer[] values) {
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            queue.add(values[i]);
+            if (queue.size() > QUEUE_LENGTH) {
+                sum += queue.remove(0);
+            }
+        }
+        return sum;
+    }
+
+    private static long dequeQueue(Deque<Integer> queue, Integer[] values) {
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            queue.offerLast(values[i]);
+            if (queue.size() > QUEUE_LENGTH) {
+                sum += queue.pollFirst();
+            }
+        }
+        return sum;
+    }
+
+    // Pushes all values, then pops them all
+    private static long dequeStack(Deque<Integer> stack, Integer[] values) {
+        for (Integer value : values) {
+            stack.push(value);
+        }
+        long sum = 0;
+        while (!stack.isEmpty()) {
+            sum += stack.pop();
+        }
+        return sum;
+    }
+
+    // Reads random indexes of a QUEUE_LENGTH-element list
+    private static long randomAccess(List<Integer> list, Integer[] values, int[] indexes) {
+        list.addAll(Arrays.asList(values).subList(0, QUEUE_LENGTH));
+        long sum = 0;
+        for (int index : indexes) {
+            sum += list.get(index);
+        }
+        return sum;
+    }
+
+    private static void time(boolean print, String structure, String workload, int operations,
+                             LongSupplier task) {
+        long start = System.nanoTime();
+        long result = task.getAsLong();
+        if (print) {
+            System.out.printf(Locale.ROOT, "%s,%s,%d,%.2f%n", structure, workload, operations,
+                    (System.nanoTime() - start) / 1e6);
+        }
+        if (result == Long.MIN_VALUE) {
+            System.out.println(); // Keep the result alive
+        }
+    }
+}
+
+/**
+ * A sorted set of ints in the style of Roaring bitmaps. Each int is split into a 16-bit
+ * chunk key and a 16-bit low part; each non-empty chunk of 65536 values gets a container:
+ * <ul>
+ *   <li>a sorted char array for up to 4096 members (2 bytes each),</li>
+ *   <li>a 65536-bit bitmap (8 KB) for denser chunks,</li>
+ *   <li>or a list of [start, length] runs when the members are mostly consecutive.</li>
+ * </ul>
+ * add picks between arrays and bitmaps; runOptimize and the set operations also consider runs.
+ * Ints are ordered as signed values, the same as TreeSet&lt;Integer&gt;.
+ *
+ * <p>{@link #writeTo(Path)} saves a layout that {@link #map(Path)} can memory-map and query
+ * in place, without loading it into the heap.
+ */
+final class CompressedIntSet implements Iterable<Integer> {
+    private static final int ARRAY_MAX = 4096;  // Beyond this, a bitmap is smaller than an array
+    private static final int WORDS = 1024;      // longs in a 65536-bit bitmap
+    private static final int MAGIC = 0x43495331; // "CIS1"
+    private static final int HEADER_BYTES = 16;
+    private static final int ENTRY_BYTES = 12;
+    private static final byte ARRAY = 0;
+    private static final byte BITMAP = 1;
+    private static final byte RUN = 2;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int count;
+    private long size;
+
+    public boolean add(int value) {
+        int u = value ^ Integer.MIN_VALUE; // Flip the sign bit so unsigned chunk order is signed int order
+        char key = (char) (u >>> 16);
+        int low = u & 0xFFFF;
+        int index = indexOf(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key, new ArrayContainer(new char[4], 0));
+        }
+        Container container = containers[index];
+        int before = container.cardinality();
+        containers[index] = container.add(low);
+        if (containers[index].cardinality() == before) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    public boolean contains(int value) {
+        int u = value ^ Integer.MIN_VALUE;
+        int index = indexOf((char) (u >>> 16));
+        return index >= 0 && containers[index].contains(u & 0xFFFF);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int first() {
+        if (count == 0) {
+            throw new NoSuchElementException();
+        }
+        return toInt(keys[0], containers[0].first());
+    }
+
+    public int last() {
+        if (count == 0) {
+            throw new NoSuchElementException();
+        }
+        return toInt(keys[count - 1], containers[count - 1].last());
+    }
+
+    /** Re-encodes every chunk as whichever of array, bitmap or runs takes the fewest bytes. */
+    public void runOptimize() {
+        for (int i = 0; i < count; i++) {
+            containers[i] = optimize(containers[i]);
+        }
+    }
+
+    /** Members in ascending order, without boxing when used through nextInt. */
+    @Override
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int index = -1;
+            private PrimitiveIterator.OfInt lows = IntStream.empty().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!lows.hasNext()) {
+                    if (index + 1 >= count) {
+                        return false;
+                    }
+                    lows = containers[++index].lows();
+                }
+                return true;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return toInt(keys[index], lows.nextInt());
+            }
+        };
+    }
+
+    public void forEachInt(IntConsumer action) {
+        for (int i = 0; i < count; i++) {
+            int key = keys[i];
+            PrimitiveIterator.OfInt lows = containers[i].lows();
+            while (lows.hasNext()) {
+                action.accept(toInt(key, lows.nextInt()));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        forEachInt(value -> joiner.add(Integer.toString(value)));
+        return joiner.toString();
+    }
+
+    // ---- Set operations: chunks are matched by key, then combined container by container ----
+
+    public static CompressedIntSet union(CompressedIntSet a, CompressedIntSet b) {
+        CompressedIntSet result = new CompressedIntSet();
+        int i = 0;
+        int j = 0;
+        while (i < a.count || j < b.count) {
+            int keyA = i < a.count ? a.keys[i] : Integer.MAX_VALUE;
+            int keyB = j < b.count ? b.keys[j] : Integer.MAX_VALUE;
+            if (keyA < keyB) {
+                result.append((char) keyA, a.containers[i++].copy());
+            } else if (keyB < keyA) {
+                result.append((char) keyB, b.containers[j++].copy());
+            } else {
+                result.append((char) keyA, or(a.containers[i++], b.containers[j++]));
+            }
+        }
+        return result;
+    }
+
+    public static CompressedIntSet intersection(CompressedIntSet a, CompressedIntSet b) {
+        CompressedIntSet result = new CompressedIntSet();
+        int i = 0;
+        int j = 0;
+        while (i < a.count && j < b.count) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (b.keys[j] < a.keys[i]) {
+                j++;
+            } else {
+                result.append(a.keys[i], and(a.containers[i++], b.containers[j++]));
+            }
+        }
+        return result;
+    }
+
+    /** Members of a that are not in b. */
+    public static CompressedIntSet difference(CompressedIntSet a, CompressedIntSet b) {
+        CompressedIntSet result = new CompressedIntSet();
+        int j = 0;
+        for (int i = 0; i < a.count; i++) {
+            while (j < b.count && b.keys[j] < a.keys[i]) {
+                j++;
+            }
+            if (j < b.count && b.keys[j] == a.keys[i]) {
+                result.append(a.keys[i], andNot(a.containers[i], b.containers[j]));
+            } else {
+                result.append(a.keys[i], a.containers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    private static Container or(Container a, Container b) {
+        if (a instanceof ArrayContainer && b instanceof ArrayContainer
+                && a.cardinality() + b.cardinality() <= ARRAY_MAX) {
+            return optimize(((ArrayContainer) a).merge((ArrayContainer) b));
+        }
+        long[] words = a.toWords();
+        b.orInto(words);
+        return fromWords(words);
+    }
+
+    private static Container and(Container a, Container b) {
+        if (a instanceof ArrayContainer) {
+            return ((ArrayContainer) a).filter(b, true);
+        }
+        if (b instanceof ArrayContainer) {
+            return ((ArrayContainer) b).filter(a, true);
+        }
+        long[] words = a.toWords();
+        long[] other = b.toWords();
+        for (int w = 0; w < WORDS; w++) {
+            words[w] &= other[w];
+        }
+        return fromWords(words);
+    }
+
+    private static Container andNot(Container a, Container b) {
+        if (a instanceof ArrayContainer) {
+            return ((ArrayContainer) a).filter(b, false);
+        }
+        long[] words = a.toWords();
+        long[] other = b.toWords();
+        for (int w = 0; w < WORDS; w++) {
+            words[w] &= ~other[w];
+        }
+        return fromWords(words);
+    }
+
+    // ---- Serialized form ----
+    // 16-byte header (magic, container count, size), then one 12-byte entry per container
+    // (key, type, cardinality, payload offset), then the payloads, each 8-byte aligned:
+    // ARRAY is the sorted chars, BITMAP is 1024 longs, RUN is a run count and [start, length - 1] char pairs.
+
+    public int serializedSize() {
+        int bytes = HEADER_BYTES + count * ENTRY_BYTES;
+        for (int i = 0; i < count; i++) {
+            bytes = align(bytes) + containers[i].payloadBytes();
+        }
+        return bytes;
+    }
+
+    public ByteBuffer serialize() {
+        ByteBuffer out = ByteBuffer.allocate(serializedSize());
+        out.putInt(MAGIC).putInt(count).putLong(size);
+        int offset = HEADER_BYTES + count * ENTRY_BYTES;
+        for (int i = 0; i < count; i++) {
+            offset = align(offset);
+            Container container = containers[i];
+            int entry = HEADER_BYTES + i * ENTRY_BYTES;
+            out.putChar(entry, keys[i]).put(entry + 2, container.type())
+               .putInt(entry + 4, container.cardinality()).putInt(entry + 8, offset);
+            out.position(offset);
+            container.writePayload(out);
+            offset += container.payloadBytes();
+        }
+        out.position(0);
+        return out;
+    }
+
+    public void writeTo(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = serialize();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    /** Maps a file written by writeTo; the mapping stays valid after the channel is closed. */
+    public static MappedIntSet map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new MappedIntSet(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** Loads a serialized set fully into the heap. */
+    public static CompressedIntSet read(ByteBuffer in) {
+        return new MappedIntSet(in).load();
+    }
+
+    /**
+     * A serialized set queried where it lies, typically a memory-mapped file. contains reads
+     * only the entry table and one container's bytes; first, last and iteration decode one
+     * container at a time.
+     */
+    static final class MappedIntSet {
+        private final ByteBuffer buffer;
+        private final int count;
+        private final long size;
+
+        MappedIntSet(ByteBuffer buffer) {
+            this.buffer = buffer;
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IllegalArgumentException("Not a serialized CompressedIntSet");
+            }
+            this.count = buffer.getInt(4);
+            this.size = buffer.getLong(8);
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public boolean contains(int value) {
+            int u = value ^ Integer.MIN_VALUE;
+            char key = (char) (u >>> 16);
+            int low = u & 0xFFFF;
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char midKey = buffer.getChar(HEADER_BYTES + mid * ENTRY_BYTES);
+                if (midKey < key) {
+                    lo = mid + 1;
+                } else if (midKey > key) {
+                    hi = mid - 1;
+                } else {
+                    return containerContains(HEADER_BYTES + mid * ENTRY_BYTES, low);
+                }
+            }
+            return false;
+        }
+
+        public int first() {
+            if (count == 0) {
+                throw new NoSuchElementException();
+            }
+            return toInt(keyAt(0), readContainer(0).first());
+        }
+
+        public int last() {
+            if (count == 0) {
+                throw new NoSuchElementException();
+            }
+            return toInt(keyAt(count - 1), readContainer(count - 1).last());
+        }
+
+        public void forEachInt(IntConsumer action) {
+            for (int i = 0; i < count; i++) {
+                int key = keyAt(i);
+                PrimitiveIterator.OfInt lows = readContainer(i).lows();
+                while (lows.hasNext()) {
+                    action.accept(toInt(key, lows.nextInt()));
+                }
+            }
+        }
+
+        public CompressedIntSet load() {
+            CompressedIntSet set = new CompressedIntSet();
+            for (int i = 0; i < count; i++) {
+                set.append(keyAt(i), readContainer(i));
+            }
+            return set;
+        }
+
+        private char keyAt(int i) {
+            return buffer.getChar(HEADER_BYTES + i * ENTRY_BYTES);
+        }
+
+        private boolean containerContains(int entry, int low) {
+            byte type = buffer.get(entry + 2);
+            int cardinality = buffer.getInt(entry + 4);
+            int offset = buffer.getInt(entry + 8);
+            if (type == BITMAP) {
+                return (buffer.getLong(offset + (low >>> 6) * 8) & (1L << low)) != 0;
+            }
+            if (type == ARRAY) {
+                int lo = 0;
+                int hi = cardinality - 1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    char v = buffer.getChar(offset + mid * 2);
+                    if (v < low) {
+                        lo = mid + 1;
+                    } else if (v > low) {
+                        hi = mid - 1;
+                    } else {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            // RUN: find the last run starting at or before low
+            int runs = buffer.getInt(offset);
+            int lo = 0;
+            int hi = runs - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (buffer.getChar(offset + 4 + mid * 4) <= low) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found >= 0 && low - buffer.getChar(offset + 4 + found * 4) <= buffer.getChar(offset + 6 + found * 4);
+        }
+
+        private Container readContainer(int i) {
+            int entry = HEADER_BYTES + i * ENTRY_BYTES;
+            byte type = buffer.get(entry + 2);
+            int cardinality = buffer.getInt(entry + 4);
+            int offset = buffer.getInt(entry + 8);
+            if (type == ARRAY) {
+                char[] values = new char[cardinality];
+                for (int v = 0; v < cardinality; v++) {
+                    values[v] = buffer.getChar(offset + v * 2);
+                }
+                return new ArrayContainer(values, cardinality);
+            }
+            if (type == BITMAP) {
+                long[] words = new long[WORDS];
+                for (int w = 0; w < WORDS; w++) {
+                    words[w] = buffer.getLong(offset + w * 8);
+                }
+                return new BitmapContainer(words, cardinality);
+            }
+            int runs = buffer.getInt(offset);
+            char[] pairs = new char[runs * 2];
+            for (int r = 0; r < pairs.length; r++) {
+                pairs[r] = buffer.getChar(offset + 4 + r * 2);
+            }
+            return new RunContainer(pairs, runs, cardinality);
+        }
+    }
+
+    // ---- Internals ----
+
+    private static int toInt(int key, int low) {
+        return ((key << 16) | low) ^ Integer.MIN_VALUE;
+    }
+
+    private static int align(int offset) {
+        return (offset + 7) & ~7;
+    }
+
+    private int indexOf(char key) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else if (keys[mid] > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private void insertContainer(int index, char key, Container container) {
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            containers = Arrays.copyOf(containers, count * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, count - index);
+        System.arraycopy(containers, index, containers, index + 1, count - index);
+        keys[index] = key;
+        containers[index] = container;
+        count++;
+    }
+
+    // Adds a chunk after all existing ones; empty results of set operations come in as null
+    private void append(char key, Container container) {
+        if (container == null) {
+            return;
+        }
+        insertContainer(count, key, container);
+        size += container.cardinality();
+    }
+
+    private static Container fromWords(long[] words) {
+        int cardinality = 0;
+        for (long word : words) {
+            cardinality += Long.bitCount(word);
+        }
+        if (cardinality == 0) {
+            return null;
+        }
+        return optimize(new BitmapContainer(words, cardinality));
+    }
+
+    private static Container optimize(Container container) {
+        if (container == null) {
+            return null;
+        }
+        int cardinality = container.cardinality();
+        int runs = container.runCount();
+        int runBytes = 4 + runs * 4;
+        int arrayBytes = cardinality <= ARRAY_MAX ? cardinality * 2 : Integer.MAX_VALUE;
+        if (runBytes < Math.min(arrayBytes, WORDS * 8)) {
+            return container instanceof RunContainer ? container : RunContainer.of(container, runs);
+        }
+        if (cardinality <= ARRAY_MAX) {
+            return container instanceof ArrayContainer ? container : ArrayContainer.of(container);
+        }
+        return container instanceof BitmapContainer ? container : new BitmapContainer(container.toWords(), cardinality);
+    }
+
+    private static void setRange(long[] words, int from, int to) { // Both inclusive
+        int first = from >>> 6;
+        int last = to >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> (63 - (to & 63));
+        if (first == last) {
+            words[first] |= firstMask & lastMask;
+            return;
+        }
+        words[first] |= firstMask;
+        for (int w = first + 1; w < last; w++) {
+            words[w] = -1L;
+        }
+        words[last] |= lastMask;
+    }
+
+    /** One chunk of 65536 values; members are the low 16 bits, 0 to 65535. */
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(int low);
+
+        /** Adds low, returning this or a new container if the representation had to change. */
+        abstract Container add(int low);
+
+        abstract int first();
+
+        abstract int last();
+
+        abstract PrimitiveIterator.OfInt lows();
+
+        abstract void orInto(long[] words);
+
+        abstract int runCount();
+
+        abstract Container copy();
+
+        abstract byte type();
+
+        abstract int payloadBytes();
+
+        abstract void writePayload(ByteBuffer out);
+
+        long[] toWords() {
+            long[] words = new long[WORDS];
+            orInto(words);
+            return words;
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int size;
+
+        ArrayContainer(char[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        static ArrayContainer of(Container container) {
+            char[] values = new char[container.cardinality()];
+            PrimitiveIterator.OfInt lows = container.lows();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (char) lows.nextInt();
+            }
+            return new ArrayContainer(values, values.length);
+        }
+
+        @Override
+        int cardinality() {
+            return size;
+        }
+
+        @Override
+        boolean contains(int low) {
+            return Arrays.binarySearch(values, 0, size, (char) low) >= 0;
+        }
+
+        @Override
+        Container add(int low) {
+            int index = Arrays.binarySearch(values, 0, size, (char) low);
+            if (index >= 0) {
+                return this;
+            }
+            if (size == ARRAY_MAX) {
+                return new BitmapContainer(toWords(), size).add(low);
+            }
+            index = -index - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, size * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = (char) low;
+            size++;
+            return this;
+        }
+
+        @Override
+        int first() {
+            return values[0];
+        }
+
+        @Override
+        int last() {
+            return values[size - 1];
+        }
+
+        @Override
+        PrimitiveIterator.OfInt lows() {
+            return new PrimitiveIterator.OfInt() {
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (index >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return values[index++];
+                }
+            };
+        }
+
+        @Override
+        void orInto(long[] words) {
+            for (int i = 0; i < size; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+        }
+
+        @Override
+        int runCount() {
+            int runs = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || values[i] != values[i - 1] + 1) {
+                    runs++;
+                }
+            }
+            return runs;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, size), size);
+        }
+
+        // Sorted merge of two arrays whose combined size fits in an array container
+        ArrayContainer merge(ArrayContainer other) {
+            char[] merged = new char[size + other.size];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < size && j < other.size) {
+                char a = values[i];
+                char b = other.values[j];
+                merged[n++] = a <= b ? a : b;
+                if (a <= b) {
+                    i++;
+                }
+                if (b <= a) {
+                    j++;
+                }
+            }
+            while (i < size) {
+                merged[n++] = values[i++];
+            }
+            while (j < other.size) {
+                merged[n++] = other.values[j++];
+            }
+            return new ArrayContainer(merged, n);
+        }
+
+        // Members that are (keep = true) or are not (keep = false) in other
+        Container filter(Container other, boolean keep) {
+            char[] kept = new char[size];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (other.contains(values[i]) == keep) {
+                    kept[n++] = values[i];
+                }
+            }
+            return n == 0 ? null : optimize(new ArrayContainer(kept, n));
+        }
+
+        @Override
+        byte type() {
+            return ARRAY;
+        }
+
+        @Override
+        int payloadBytes() {
+            return size * 2;
+        }
+
+        @Override
+        void writePayload(ByteBuffer out) {
+            for (int i = 0; i < size; i++) {
+                out.putChar(values[i]);
+            }
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(int low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        Container add(int low) {
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) == 0) {
+                words[low >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        int first() {
+            int w = 0;
+            while (words[w] == 0) {
+                w++;
+            }
+            return w * 64 + Long.numberOfTrailingZeros(words[w]);
+        }
+
+        @Override
+        int last() {
+            int w = WORDS - 1;
+            while (words[w] == 0) {
+                w--;
+            }
+            return w * 64 + 63 - Long.numberOfLeadingZeros(words[w]);
+        }
+
+        @Override
+        PrimitiveIterator.OfInt lows() {
+            return new PrimitiveIterator.OfInt() {
+                private int index;
+                private long word = words[0];
+
+                @Override
+                public boolean hasNext() {
+                    while (word == 0) {
+                        if (++index >= WORDS) {
+                            index = WORDS - 1;
+                            return false;
+                        }
+                        word = words[index];
+                    }
+                    return true;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    int low = index * 64 + Long.numberOfTrailingZeros(word);
+                    word &= word - 1; // Clear the lowest set bit
+                    return low;
+                }
+            };
+        }
+
+        @Override
+        void orInto(long[] target) {
+            for (int w = 0; w < WORDS; w++) {
+                target[w] |= words[w];
+            }
+        }
+
+        // A run starts at every set bit whose lower neighbour is clear
+        @Override
+        int runCount() {
+            int runs = 0;
+            long carry = 0;
+            for (long word : words) {
+                runs += Long.bitCount(word & ~((word << 1) | carry));
+                carry = word >>> 63;
+            }
+            return runs;
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        long[] toWords() {
+            return words.clone();
+        }
+
+        @Override
+        byte type() {
+            return BITMAP;
+        }
+
+        @Override
+        int payloadBytes() {
+            return WORDS * 8;
+        }
+
+        @Override
+        void writePayload(ByteBuffer out) {
+            for (long word : words) {
+                out.putLong(word);
+            }
+        }
+    }
+
+    private static final class RunContainer extends Container {
+        private final char[] runs; // Pairs of start and length - 1
+        private final int runCount;
+        private final int cardinality;
+
+        RunContainer(char[] runs, int runCount, int cardinality) {
+            this.runs = runs;
+            this.runCount = runCount;
+            this.cardinality = cardinality;
+        }
+
+        static RunContainer of(Container container, int runCount) {
+            char[] runs = new char[runCount * 2];
+            int n = -1;
+            int previous = -2;
+            PrimitiveIterator.OfInt lows = container.lows();
+            while (lows.hasNext()) {
+                int low = lows.nextInt();
+                if (low == previous + 1) {
+                    runs[n * 2 + 1]++;
+                } else {
+                    n++;
+                    runs[n * 2] = (char) low;
+                }
+                previous = low;
+            }
+            return new RunContainer(runs, runCount, container.cardinality());
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(int low) {
+            int lo = 0;
+            int hi = runCount - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (runs[mid * 2] <= low) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found >= 0 && low - runs[found * 2] <= runs[found * 2 + 1];
+        }
+
+        // Runs are immutable; adding goes back to an array or bitmap until the next runOptimize
+        @Override
+        Container add(int low) {
+            if (contains(low)) {
+                return this;
+            }
+            Container container = cardinality < ARRAY_MAX ? ArrayContainer.of(this) : new BitmapContainer(toWords(), cardinality);
+            return container.add(low);
+        }
+
+        @Override
+        int first() {
+            return runs[0];
+        }
+
+        @Override
+        int last() {
+            return runs[runCount * 2 - 2] + runs[runCount * 2 - 1];
+        }
+
+        @Override
+        PrimitiveIterator.OfInt lows() {
+            return new PrimitiveIterator.OfInt() {
+                private int run;
+                private int next = runCount > 0 ? runs[0] : 0;
+
+                @Override
+                public boolean hasNext() {
+                    return run < runCount;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (run >= runCount) {
+                        throw new NoSuchElementException();
+                    }
+                    int low = next;
+                    if (low == runs[run * 2] + runs[run * 2 + 1]) {
+                        run++;
+                        next = run < runCount ? runs[run * 2] : 0;
+                    } else {
+                        next++;
+                    }
+                    return low;
+                }
+            };
+        }
+
+        @Override
+        void orInto(long[] words) {
+            for (int r = 0; r < runCount; r++) {
+                setRange(words, runs[r * 2], runs[r * 2] + runs[r * 2 + 1]);
+            }
+        }
+
+        @Override
+        int runCount() {
+            return runCount;
+        }
+
+        @Override
+        Container copy() {
+            return this; // Immutable
+        }
+
+        @Override
+        byte type() {
+            return RUN;
+        }
+
+        @Override
+        int payloadBytes() {
+            return 4 + runCount * 4;
+        }
+
+        @Override
+        void writePayload(ByteBuffer out) {
+            out.putInt(runCount);
+            for (int i = 0; i < runCount * 2; i++) {
+                out.putChar(runs[i]);
+            }
+        }
+    }
+}
+
+/**
+ * Memory and speed of CompressedIntSet against TreeSet<Integer> and BitSet on sparse,
+ * dense and clustered (run) ids. Sparse ids are spread over 2^30 values, which costs
+ * BitSet 128 MB whatever the element count.
+ * Prints CSV: structure,dataset,elements,bytes_per_element,contains_millis,iterate_millis,intersect_millis.
+ * The element count can be passed as the first argument.
+ */
+class CompressedIntSetBenchmark {
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        System.out.println("structure,dataset,elements,bytes_per_element,contains_millis,iterate_millis,intersect_millis");
+        for (String dataset : new String[] {"sparse", "dense", "runs"}) {
+            int[] ids = ids(dataset, count, 1);
+            int[] otherIds = ids(dataset, count, 2);
+            int[] probes = new Random(3).ints(1_000_000, 0, max(ids) + 1).toArray();
+
+            // Each structure's heap is measured while all earlier ones are still reachable
+            long before = usedHeap();
+            TreeSet<Integer> treeSet = new TreeSet<>();
+            for (int id : ids) {
+                treeSet.add(id);
+            }
+            long afterTreeSet = usedHeap();
+            BitSet bitSet = new BitSet();
+            for (int id : ids) {
+                bitSet.set(id);
+            }
+            long afterBitSet = usedHeap();
+            CompressedIntSet compressed = new CompressedIntSet();
+            for (int id : ids) {
+                compressed.add(id);
+            }
+            compressed.runOptimize();
+            long afterCompressed = usedHeap();
+
+            TreeSet<Integer> otherTreeSet = new TreeSet<>();
+            BitSet otherBitSet = new BitSet();
+            CompressedIntSet otherCompressed = new CompressedIntSet();
+            for (int id : otherIds) {
+                otherTreeSet.add(id);
+                otherBitSet.set(id);
+                otherCompressed.add(id);
+            }
+            otherCompressed.runOptimize();
+
+            report("TreeSet<Integer>", dataset, treeSet.size(), afterTreeSet - before,
+                    () -> countHits(treeSet::contains, probes),
+                    () -> {
+                        long sum = 0;
+                        for (int id : treeSet) {
+                            sum += id;
+                        }
+                        return sum;
+                    },
+                    () -> {
+                        TreeSet<Integer> both = new TreeSet<>(treeSet);
+                        both.retainAll(otherTreeSet);
+                        return both.size();
+                    });
+            report("BitSet", dataset, bitSet.cardinality(), afterBitSet - afterTreeSet,
+                    () -> countHits(bitSet::get, probes),
+                    () -> {
+                        long sum = 0;
+                        for (int id = bitSet.nextSetBit(0); id >= 0; id = bitSet.nextSetBit(id + 1)) {
+                            sum += id;
+                        }
+                        return sum;
+                    },
+                    () -> {
+                        BitSet both = (BitSet) bitSet.clone();
+                        both.and(otherBitSet);
+                        return both.cardinality();
+                    });
+            report("CompressedIntSet", dataset, compressed.size(), afterCompressed - afterBitSet,
+                    () -> countHits(compressed::contains, probes),
+                    () -> {
+                        long sum = 0;
+                        for (PrimitiveIterator.OfInt it = compressed.iterator(); it.hasNext(); ) {
+                            sum += it.nextInt();
+                        }
+                        return sum;
+                    },
+                    () -> CompressedIntSet.intersection(compressed, otherCompressed).size());
+        }
+    }
+
+    // sparse: spread over 2^30 values; dense: a quarter of [0, 4 * count); runs: blocks of 1000 consecutive ids
+    private static int[] ids(String dataset, int count, long seed) {
+        Random random = new Random(seed);
+        switch (dataset) {
+            case "sparse":
+                return random.ints(count, 0, 1 << 30).toArray();
+            case "dense":
+                return random.ints(count, 0, count * 4).toArray();
+            default:
+                int[] ids = new int[count];
+                for (int i = 0; i < count; i++) {
+                    ids[i] = (i / 1000) * 5000 + (int) (seed * 500) + i % 1000;
+                }
+                return ids;
+        }
+    }
+
+    private static int max(int[] values) {
+        return Arrays.stream(values).max().orElse(0);
+    }
+
+    private static long countHits(IntPredicate contains, int[] probes) {
+        long hits = 0;
+        for (int probe : probes) {
+            if (contains.test(probe)) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    private static void report(String structure, String dataset, long elements, long bytes,
+                               LongSupplier contains, LongSupplier iterate, LongSupplier intersect) {
+        System.out.printf(Locale.ROOT, "%s,%s,%d,%.1f,%.2f,%.2f,%.2f%n", structure, dataset, elements,
+                (double) bytes / elements, millis(contains), millis(iterate), millis(intersect));
+    }
+
+    // Runs once to warm up, then times a second run
+    private static double millis(LongSupplier task) {
+        long result = task.getAsLong();
+        long start = System.nanoTime();
+        result += task.getAsLong();
+        double millis = (System.nanoTime() - start) / 1e6;
+        if (result == Long.MIN_VALUE) {
+            System.out.println(); // Keep the result alive
+        }
+        return millis;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -1,7 +1,53 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class JavaGenericsStreamsTutorial {
 
@@ -13,6 +59,22 @@ public class JavaGenericsStreamsTutorial {
         // Demonstrate Streams
         System.out.println("\n--- Java Streams Demo ---");
         streamsDemo();
+
+        // The same operations over words read straight from a file
+        System.out.println("\n--- Memory-Mapped Word Stream Demo ---");
+        mappedWordsDemo();
+
+        // Aggregations over an unbounded stream, one time window at a time
+        System.out.println("\n--- Windowed Aggregation Demo ---");
+        windowedAggregationDemo();
+
+        // Printing through a background writer thread
+        System.out.println("\n--- Asynchronous Output Demo ---");
+        System.out.flush();
+        try (AsyncOutput async = AsyncOutput.toStdout(1024, AsyncOutput.Overflow.BLOCK)) {
+            printList(Arrays.asList("written", "by", "the", "async", "writer"), async.asPrintStream());
+            async.println("Lines dropped so far: " + async.droppedLines());
+        }
     }
 
     // Section: Java Generics
@@ -47,10 +109,23 @@ public class JavaGenericsStreamsTutorial {
      * @param list  the list to print
      */
     public static <E> void printList(List<E> list) {
+        printList(list, System.out);
+    }
+
+    /**
+     * Same as {@link #printList(List)}, but prints to the given stream, for example
+     * {@link AsyncOutput#asPrintStream()} to keep slow console output off the caller's thread.
+     *
+     * @param <E>   the type of elements in the list
+     * @param list  the list to print
+     * @param out   where to print it
+     */
+    public static <E> void printList(List<E> list, PrintStream out) {
+        StringBuilder line = new StringBuilder();
         for (E element : list) {
-            System.out.print(element + " ");
+            line.append(element).append(' ');
         }
-        System.out.println();
+        out.println(line); // One write per list instead of one per element
     }
 
     public static void genericsDemo() {
@@ -109,10 +184,13 @@ public class JavaGenericsStreamsTutorial {
         System.out.println("Lengths of long words (>5 chars): " + lengthsOfLongWords);
 
         // Example 4: Reducing
-        // Concatenate all words into a single string
+        // Concatenate all words into a single string.
+        // reduce("", (a, b) -> a + " " + b) would copy the whole string built so far on every
+        // step (quadratic), so a joining collector that appends into buffers is used instead.
         String concatenatedWords = words.stream()
-                                        .reduce("", (partialString, element) -> partialString + " " + element); // Accumulator
-        System.out.println("Concatenated words: " + concatenatedWords.trim());
+                                        .collect(ChunkedJoiner.joining(" ")) // Mutable reduction
+                                        .toString();
+        System.out.println("Concatenated words: " + concatenatedWords);
 
         // Example 5: ForEach
         // Print each word that contains 'a'
@@ -137,5 +215,1481 @@ public class JavaGenericsStreamsTutorial {
                                                             .distinct() // Get unique elements
                                                             .collect(Collectors.toList());
         System.out.println("Distinct numbers: " + distinctNumbers);
+
+        // The same on a primitive IntStream: no Integer boxing and no HashSet<Integer>.
+        // The values are known to lie in 0..100, so a bitset is enough to remember them.
+        int[] distinctInts = PrimitiveDistinct.distinctInRange(IntStream.of(1, 2, 2, 3, 4, 4, 4, 5, 6, 6), 0, 100)
+                                              .toArray();
+        System.out.println("Distinct ints: " + Arrays.toString(distinctInts));
+    }
+
+
+    // Section: Streaming words from large files
+    // Reading a multi-gigabyte file with Files.lines() creates a String for every line before
+    // a single word is looked at. Memory-mapping the file lets a stream walk the raw bytes instead,
+    // and only the words that survive the pipeline are ever turned into Strings.
+
+    public static void mappedWordsDemo() {
+        try {
+            Path file = Files.createTempFile("words", ".txt");
+            Files.write(file, "apple banana cherry date\nelderberry fig apple".getBytes(StandardCharsets.US_ASCII));
+            try (MappedWordSource source = new MappedWordSource(file)) {
+                // Example 1: Filtering, without decoding the words that do not match
+                System.out.println("Words starting with 'c': " + source.words()
+                        .filter(word -> word.startsWith("c"))
+                        .map(ByteWord::toString)
+                        .collect(Collectors.toList()));
+
+                // Example 2: Mapping
+                System.out.println("Uppercase words: " + source.words()
+                        .map(ByteWord::toUpperCase)
+                        .collect(Collectors.toList()));
+
+                // Example 3: Filtering and Mapping
+                System.out.println("Lengths of long words (>5 chars): " + source.words()
+                        .filter(word -> word.length() > 5)
+                        .map(ByteWord::length)
+                        .collect(Collectors.toList()));
+
+                // Example 5: Words containing 'a'
+                System.out.println("Words containing 'a': " + source.words()
+                        .filter(word -> word.contains('a'))
+                        .count());
+
+                // Example 7: distinct() compares the bytes, so it also needs no Strings
+                System.out.println("Distinct words: " + source.words()
+                        .parallel()
+                        .distinct()
+                        .count());
+            }
+            Files.delete(file);
+        } catch (IOException e) {
+            System.out.println("Mapped word demo failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A word inside a memory-mapped file: just a buffer, an offset and a length.
+     * Its bytes are only copied into a String when {@link #toString()} or
+     * {@link #toUpperCase()} is called. Words are runs of ASCII letters and digits.
+     */
+    static final class ByteWord implements CharSequence {
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final int length;
+        private int hash;
+
+        ByteWord(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(offset + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new ByteWord(buffer, offset + start, end - start);
+        }
+
+        public boolean startsWith(String prefix) {
+            if (prefix.length() > length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (charAt(i) != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean contains(char c) {
+            // Words hold only ASCII; narrowing a wider char to a byte would
+            // match the wrong letter (U+0161 would find 'a')
+            if (c > 0x7F) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(offset + i) == (byte) c) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public String toUpperCase() {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                byte b = buffer.get(offset + i);
+                bytes[i] = (b >= 'a' && b <= 'z') ? (byte) (b - 32) : b;
+            }
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            buffer.get(offset, bytes);
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = hash;
+            if (h == 0) {
+                for (int i = 0; i < length; i++) {
+                    h = 31 * h + buffer.get(offset + i); // Same as String.hashCode for ASCII
+                }
+                hash = h;
+            }
+            return h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ByteWord)) return false;
+            ByteWord other = (ByteWord) o;
+            if (length != other.length || hashCode() != other.hashCode()) return false;
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(offset + i) != other.buffer.get(other.offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static boolean isWordByte(byte b) {
+        int lower = b | 0x20;
+        return (lower >= 'a' && lower <= 'z') || (b >= '0' && b <= '9');
+    }
+
+    /**
+     * Memory-maps a text file and streams its words as {@link ByteWord}s.
+     * Files larger than one mapping are split into regions that end on a word
+     * boundary, and the stream's spliterator divides regions (and then byte
+     * ranges within a region) in half, so parallel streams spread evenly over cores.
+     */
+    static class MappedWordSource implements AutoCloseable {
+        static final int DEFAULT_REGION_BYTES = 1 << 28; // 256 MB per mapping
+
+        private final FileChannel channel;
+        private final ByteBuffer[] regions;
+        private final long size;
+
+        public MappedWordSource(Path file) throws IOException {
+            this(file, DEFAULT_REGION_BYTES);
+        }
+
+        public MappedWordSource(Path file, int regionBytes) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            size = channel.size();
+            List<ByteBuffer> mapped = new ArrayList<>();
+            long start = 0;
+            while (start < size) {
+                long end = Math.min(size, start + regionBytes);
+                end = nextBoundary(end);
+                mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                start = end;
+            }
+            regions = mapped.toArray(new ByteBuffer[0]);
+        }
+
+        // Moves a region end forward until it no longer cuts a word in two
+        private long nextBoundary(long position) throws IOException {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            while (position < size) {
+                one.clear();
+                channel.read(one, position);
+                if (!isWordByte(one.get(0))) {
+                    return position;
+                }
+                position++;
+            }
+            return position;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public Stream<ByteWord> words() {
+            if (regions.length == 0) {
+                return Stream.empty();
+            }
+            return StreamSupport.stream(new WordSpliterator(regions, 0, regions.length, 0, regions[0].limit()), false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Walks regions [region, lastRegion). Within the current region it reads
+     * bytes [position, end); every later region is read in full.
+     */
+    static class WordSpliterator implements Spliterator<ByteWord> {
+        private static final int MIN_SPLIT_BYTES = 1 << 16;
+
+        private final ByteBuffer[] regions;
+        private int region;
+        private final int lastRegion;
+        private int position;
+        private int end;
+
+        WordSpliterator(ByteBuffer[] regions, int region, int lastRegion, int position, int end) {
+            this.regions = regions;
+            this.region = region;
+            this.lastRegion = lastRegion;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super ByteWord> action) {
+            while (true) {
+                ByteBuffer buffer = regions[region];
+                while (position < end && !isWordByte(buffer.get(position))) {
+                    position++;
+                }
+                if (position < end) {
+                    int start = position;
+                    while (position < end && isWordByte(buffer.get(position))) {
+                        position++;
+                    }
+                    action.accept(new ByteWord(buffer, start, position - start));
+                    return true;
+                }
+                if (region + 1 >= lastRegion) {
+                    return false;
+                }
+                region++;
+                position = 0;
+                end = regions[region].limit();
+            }
+        }
+
+        @Override
+        public Spliterator<ByteWord> trySplit() {
+            if (lastRegion - region > 1) {
+                // Hand the first half of the regions to the new spliterator
+                int mid = (region + lastRegion) >>> 1;
+                WordSpliterator prefix = new WordSpliterator(regions, region, mid, position, end);
+                region = mid;
+                position = 0;
+                end = regions[mid].limit();
+                return prefix;
+            }
+            if (end - position < MIN_SPLIT_BYTES) {
+                return null;
+            }
+            // Split the byte range, moving the cut forward so no word is cut in half
+            ByteBuffer buffer = regions[region];
+            int mid = (position + end) >>> 1;
+            while (mid < end && isWordByte(buffer.get(mid))) {
+                mid++;
+            }
+            WordSpliterator prefix = new WordSpliterator(regions, region, region + 1, position, mid);
+            position = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            long bytes = end - position;
+            for (int r = region + 1; r < lastRegion; r++) {
+                bytes += regions[r].limit();
+            }
+            return bytes / 6; // Rough guess: an average word plus its separator
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+    }
+
+    /**
+     * Throughput benchmark for {@link MappedWordSource}: runs the streamsDemo
+     * pipelines sequentially and in parallel over a file and prints MB/s as CSV.
+     * Run it with:  java 'JavaGenericsStreamsTutorial$WordStreamBenchmark' [file | sizeInMB]
+     */
+    static class WordStreamBenchmark {
+        public static void main(String[] args) throws IOException {
+            Path file;
+            boolean generated = args.length == 0 || args[0].matches("\\d+");
+            if (generated) {
+                int megabytes = args.length == 0 ? 256 : Integer.parseInt(args[0]);
+                file = generateWords(megabytes);
+            } else {
+                file = Paths.get(args[0]);
+            }
+
+            try (MappedWordSource source = new MappedWordSource(file)) {
+                double megabytes = source.size() / (1024.0 * 1024.0);
+                List<String> names = Arrays.asList("startsWith", "toUpperCase", "length>5", "contains", "distinct");
+                List<Function<Stream<ByteWord>, Long>> pipelines = Arrays.asList(
+                        words -> words.filter(w -> w.startsWith("c")).count(),
+                        words -> words.map(ByteWord::toUpperCase).count(),
+                        words -> words.filter(w -> w.length() > 5).mapToInt(ByteWord::length).count(),
+                        words -> words.filter(w -> w.contains('a')).count(),
+                        words -> words.distinct().count());
+
+                System.out.println("pipeline,mode,mb_per_sec");
+                for (int p = 0; p < pipelines.size(); p++) {
+                    for (boolean parallel : new boolean[] {false, true}) {
+                        int pipeline = p;
+                        Supplier<Stream<ByteWord>> words = () -> parallel ? source.words().parallel() : source.words();
+                        pipelines.get(pipeline).apply(words.get()); // Warm-up run
+                        long start = System.nanoTime();
+                        pipelines.get(pipeline).apply(words.get());
+                        double seconds = (System.nanoTime() - start) / 1e9;
+                        System.out.printf(Locale.ROOT, "%s,%s,%.1f%n", names.get(pipeline),
+                                parallel ? "parallel" : "sequential", megabytes / seconds);
+                    }
+                }
+            } finally {
+                if (generated) {
+                    Files.delete(file);
+                }
+            }
+        }
+
+        private static Path generateWords(int megabytes) throws IOException {
+            String[] vocabulary = {"apple", "banana", "cherry", "date", "elderberry", "fig",
+                    "grape", "honeydew", "kiwi", "lemon", "mango", "nectarine"};
+            Random random = new Random(42);
+            Path file = Files.createTempFile("words", ".txt");
+            try (Writer out = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+                long written = 0;
+                long target = megabytes * 1024L * 1024L;
+                while (written < target) {
+                    String word = vocabulary[random.nextInt(vocabulary.length)] + random.nextInt(1000);
+                    out.write(word);
+                    out.write(random.nextInt(12) == 0 ? '\n' : ' ');
+                    written += word.length() + 1;
+                }
+            }
+            return file;
+        }
+    }
+
+    /**
+     * Linear-time string joining. Text is appended into a list of bounded-size
+     * {@link StringBuilder} chunks, so a long result never has to be copied as it
+     * grows, and parallel partial results are combined by concatenating their
+     * chunk lists rather than their characters. The first chunk starts small and
+     * doubles up to the chunk size, so short results (and the many small partial
+     * results of a parallel stream) stay small.
+     */
+    static class ChunkedJoiner {
+        static final int FIRST_CHUNK_CHARS = 64;
+        static final int CHUNK_CHARS = 1 << 16;
+
+        /**
+         * Like {@link Collectors#joining(CharSequence)}, but the result can be
+         * written to a {@link Writer} or {@link OutputStream} without first being
+         * turned into one big String.
+         */
+        public static Collector<CharSequence, ChunkedText, ChunkedText> joining(CharSequence delimiter) {
+            String separator = delimiter.toString();
+            return Collector.of(
+                    () -> new ChunkedText(separator),
+                    ChunkedText::add,
+                    ChunkedText::merge);
+        }
+
+        /**
+         * Writes the joined words straight to {@code out} as the stream produces them,
+         * in constant memory. The stream is consumed in encounter order.
+         */
+        public static void joinTo(Stream<? extends CharSequence> words, CharSequence delimiter, Writer out) throws IOException {
+            boolean[] first = {true};
+            try {
+                words.forEachOrdered(word -> {
+                    try {
+                        if (!first[0]) {
+                            out.append(delimiter);
+                        }
+                        out.append(word);
+                        first[0] = false;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /** The result of {@link ChunkedJoiner#joining}: joined text held as a list of chunks. */
+    static class ChunkedText implements CharSequence {
+        private final String delimiter;
+        private final List<StringBuilder> chunks = new ArrayList<>();
+        private long length;
+        private boolean hasElements;
+
+        ChunkedText(String delimiter) {
+            this.delimiter = delimiter;
+        }
+
+        void add(CharSequence element) {
+            if (hasElements) {
+                appendRaw(delimiter);
+            }
+            appendRaw(element);
+            hasElements = true;
+        }
+
+        private void appendRaw(CharSequence text) {
+            int needed = text.length();
+            StringBuilder last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (last == null || (last.length() > 0 && last.length() + needed > ChunkedJoiner.CHUNK_CHARS)) {
+                // Only once a full chunk's worth of text has arrived are chunks allocated at full size
+                int initial = last == null ? ChunkedJoiner.FIRST_CHUNK_CHARS : ChunkedJoiner.CHUNK_CHARS;
+                last = new StringBuilder(Math.max(initial, needed));
+                chunks.add(last);
+            } else if (last.length() + needed > last.capacity()) {
+                // Double a small chunk ourselves, since StringBuilder's own growth would overshoot CHUNK_CHARS
+                int capacity = Math.min(ChunkedJoiner.CHUNK_CHARS, Math.max(2 * last.capacity(), last.length() + needed));
+                last = new StringBuilder(capacity).append(last);
+                chunks.set(chunks.size() - 1, last);
+            }
+            last.append(text);
+            length += text.length();
+        }
+
+        // Combines two partial results; only chunk references move, never characters
+        ChunkedText merge(ChunkedText other) {
+            if (!other.hasElements) return this;
+            if (!hasElements) return other;
+            appendRaw(delimiter);
+            chunks.addAll(other.chunks);
+            length += other.length;
+            return this;
+        }
+
+        public long totalLength() {
+            return length;
+        }
+
+        public void writeTo(Writer out) throws IOException {
+            char[] buffer = new char[8192];
+            for (StringBuilder chunk : chunks) {
+                for (int from = 0; from < chunk.length(); from += buffer.length) {
+                    int to = Math.min(chunk.length(), from + buffer.length);
+                    chunk.getChars(from, to, buffer, 0);
+                    out.write(buffer, 0, to - from);
+                }
+            }
+        }
+
+        public void writeTo(OutputStream out, Charset charset) throws IOException {
+            Writer writer = new OutputStreamWriter(out, charset);
+            writeTo(writer);
+            writer.flush();
+        }
+
+        @Override
+        public int length() {
+            return Math.toIntExact(length);
+        }
+
+        @Override
+        public char charAt(int index) {
+            for (StringBuilder chunk : chunks) {
+                if (index < chunk.length()) {
+                    return chunk.charAt(index);
+                }
+                index -= chunk.length();
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        // Builds the full String with a single presized copy
+        @Override
+        public String toString() {
+            StringBuilder all = new StringBuilder(length());
+            for (StringBuilder chunk : chunks) {
+                all.append(chunk);
+            }
+            return all.toString();
+        }
+    }
+
+    /**
+     * Compares the old quadratic reduce with ChunkedJoiner from 1k to 10M words.
+     * Run it with:  java 'JavaGenericsStreamsTutorial$WordJoinBenchmark'
+     */
+    static class WordJoinBenchmark {
+        // Beyond this the quadratic reduce takes minutes, so it is skipped
+        private static final int REDUCE_LIMIT = 100_000;
+
+        public static void main(String[] args) throws IOException {
+            System.out.println("words,method,millis");
+            for (int count = 1_000; count <= 10_000_000; count *= 10) {
+                List<String> words = IntStream.range(0, count)
+                                              .mapToObj(i -> "word" + (i % 1000))
+                                              .collect(Collectors.toList());
+                if (count <= REDUCE_LIMIT) {
+                    time(count, "reduce", () -> words.stream().reduce("", (a, b) -> a + " " + b).length());
+                }
+                time(count, "joining", () -> words.stream().collect(ChunkedJoiner.joining(" ")).totalLength());
+                time(count, "joining-parallel", () -> words.parallelStream().collect(ChunkedJoiner.joining(" ")).totalLength());
+                time(count, "joinTo-writer", () -> {
+                    StringWriter out = new StringWriter();
+                    ChunkedJoiner.joinTo(words.stream(), " ", out);
+                    return out.getBuffer().length();
+                });
+            }
+        }
+
+        interface Task {
+            long run() throws IOException;
+        }
+
+        private static void time(int count, String method, Task task) throws IOException {
+            task.run(); // Warm-up
+            long start = System.nanoTime();
+            long result = task.run();
+            System.out.printf(Locale.ROOT, "%d,%s,%.2f%n", count, method, (System.nanoTime() - start) / 1e6);
+            if (result < 0) {
+                System.out.println(); // Keep the result alive
+            }
+        }
+    }
+
+    /**
+     * distinct() for IntStream and LongStream without boxing.
+     * <ul>
+     *   <li>{@code distinct} keeps encounter order and remembers values in an
+     *       open-addressing hash set of primitives.</li>
+     *   <li>{@code distinctInRange} is the same when all values lie in a known
+     *       range. It picks the cheaper set from the range and the stream's size
+     *       estimate: a bitset costs one bit per possible value and needs no hashing,
+     *       a hash set costs about {@value #HASH_BYTES_PER_VALUE} bytes per value.</li>
+     *   <li>{@code parallelDistinct} gives up encounter order: each thread fills its
+     *       own set and the sets are merged at the end.</li>
+     * </ul>
+     * The order-keeping variants stay lazy, so they work on infinite streams with a
+     * later {@code limit}. Their set is only ever touched by one thread at a time,
+     * even if the caller turns the returned stream parallel.
+     */
+    static class PrimitiveDistinct {
+        // Open-addressing sets stay at most half full: 8-16 bytes per int, twice that per long
+        static final int HASH_BYTES_PER_VALUE = 16;
+
+        public static IntStream distinct(IntStream values) {
+            IntHashSet seen = new IntHashSet();
+            return firstOccurrences(values, seen::add);
+        }
+
+        public static LongStream distinct(LongStream values) {
+            LongHashSet seen = new LongHashSet();
+            return firstOccurrences(values, seen::add);
+        }
+
+        public static IntStream distinctInRange(IntStream values, int min, int max) {
+            if (max < min) {
+                throw new IllegalArgumentException("Empty range: " + min + ".." + max);
+            }
+            Spliterator.OfInt source = values.spliterator();
+            long range = (long) max - min + 1;
+            IntPredicate firstTime;
+            if (preferBitSet(range, source.estimateSize())) {
+                BitSet seen = new BitSet((int) range);
+                firstTime = value -> addToBitSet(seen, value, min, max);
+            } else {
+                IntHashSet seen = new IntHashSet();
+                firstTime = value -> {
+                    checkInRange(value, min, max);
+                    return seen.add(value);
+                };
+            }
+            return StreamSupport.intStream(new FirstOccurrenceInts(source, firstTime), false).onClose(values::close);
+        }
+
+        public static LongStream distinctInRange(LongStream values, long min, long max) {
+            if (max < min) {
+                throw new IllegalArgumentException("Empty range: " + min + ".." + max);
+            }
+            Spliterator.OfLong source = values.spliterator();
+            // max - min can overflow a long, but as an unsigned value it is exact
+            long width = max - min;
+            LongPredicate firstTime;
+            if (Long.compareUnsigned(width, Integer.MAX_VALUE - 1) <= 0
+                    && preferBitSet(width + 1, source.estimateSize())) {
+                BitSet seen = new BitSet((int) (width + 1));
+                firstTime = value -> {
+                    checkInRange(value, min, max);
+                    int bit = (int) (value - min);
+                    if (seen.get(bit)) return false;
+                    seen.set(bit);
+                    return true;
+                };
+            } else {
+                LongHashSet seen = new LongHashSet();
+                firstTime = value -> {
+                    checkInRange(value, min, max);
+                    return seen.add(value);
+                };
+            }
+            return StreamSupport.longStream(new FirstOccurrenceLongs(source, firstTime), false).onClose(values::close);
+        }
+
+        // A bitset wins unless the stream is known to hold far fewer values than the range
+        private static boolean preferBitSet(long range, long estimatedValues) {
+            return range <= Integer.MAX_VALUE && range / (8L * HASH_BYTES_PER_VALUE) <= estimatedValues;
+        }
+
+        private static IntStream firstOccurrences(IntStream values, IntPredicate firstTime) {
+            return StreamSupport.intStream(new FirstOccurrenceInts(values.spliterator(), firstTime), false)
+                                .onClose(values::close);
+        }
+
+        private static LongStream firstOccurrences(LongStream values, LongPredicate firstTime) {
+            return StreamSupport.longStream(new FirstOccurrenceLongs(values.spliterator(), firstTime), false)
+                                .onClose(values::close);
+        }
+
+        /**
+         * Passes on the values that {@code firstTime} accepts, pulling them from the
+         * source one at a time in encounter order. A parallel stream can still split
+         * this spliterator, but only by taking batches off its front, so the stateful
+         * predicate is never called from two threads at once.
+         */
+        private static final class FirstOccurrenceInts extends Spliterators.AbstractIntSpliterator implements IntConsumer {
+            private final Spliterator.OfInt source;
+            private final IntPredicate firstTime;
+            private int next;
+            private boolean found;
+
+            FirstOccurrenceInts(Spliterator.OfInt source, IntPredicate firstTime) {
+                super(source.estimateSize(), (source.characteristics() & Spliterator.ORDERED) | Spliterator.DISTINCT);
+                this.source = source;
+                this.firstTime = firstTime;
+            }
+
+            @Override
+            public void accept(int value) {
+                if (firstTime.test(value)) {
+                    next = value;
+                    found = true;
+                }
+            }
+
+            @Override
+            public boolean tryAdvance(IntConsumer action) {
+                found = false;
+                while (!found && source.tryAdvance(this)) {
+                    // Skip values seen before
+                }
+                if (!found) return false;
+                action.accept(next);
+                return true;
+            }
+
+            @Override
+            public void forEachRemaining(IntConsumer action) {
+                source.forEachRemaining((int value) -> {
+                    if (firstTime.test(value)) action.accept(value);
+                });
+            }
+        }
+
+        /** {@link FirstOccurrenceInts} for long values. */
+        private static final class FirstOccurrenceLongs extends Spliterators.AbstractLongSpliterator implements LongConsumer {
+            private final Spliterator.OfLong source;
+            private final LongPredicate firstTime;
+            private long next;
+            private boolean found;
+
+            FirstOccurrenceLongs(Spliterator.OfLong source, LongPredicate firstTime) {
+                super(source.estimateSize(), (source.characteristics() & Spliterator.ORDERED) | Spliterator.DISTINCT);
+                this.source = source;
+                this.firstTime = firstTime;
+            }
+
+            @Override
+            public void accept(long value) {
+                if (firstTime.test(value)) {
+                    next = value;
+                    found = true;
+                }
+            }
+
+            @Override
+            public boolean tryAdvance(LongConsumer action) {
+                found = false;
+                while (!found && source.tryAdvance(this)) {
+                    // Skip values seen before
+                }
+                if (!found) return false;
+                action.accept(next);
+                return true;
+            }
+
+            @Override
+            public void forEachRemaining(LongConsumer action) {
+                source.forEachRemaining((long value) -> {
+                    if (firstTime.test(value)) action.accept(value);
+                });
+            }
+        }
+
+        public static IntStream parallelDistinct(IntStream values) {
+            return values.parallel()
+                         .collect(IntHashSet::new, IntHashSet::add, IntHashSet::addAll)
+                         .stream();
+        }
+
+        public static LongStream parallelDistinct(LongStream values) {
+            return values.parallel()
+                         .collect(LongHashSet::new, LongHashSet::add, LongHashSet::addAll)
+                         .stream();
+        }
+
+        // Per-thread bitsets merged with a word-wise OR; the result comes out in ascending order
+        public static IntStream parallelDistinctInRange(IntStream values, int min, int max) {
+            int size = rangeSize(min, max);
+            BitSet seen = values.parallel().collect(
+                    () -> new BitSet(size),
+                    (bits, value) -> addToBitSet(bits, value, min, max),
+                    BitSet::or);
+            return seen.stream().map(bit -> bit + min);
+        }
+
+        private static int rangeSize(int min, int max) {
+            if (max < min) {
+                throw new IllegalArgumentException("max < min");
+            }
+            long size = (long) max - min + 1;
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Range too large for a bitset: " + min + ".." + max);
+            }
+            return (int) size;
+        }
+
+        private static void checkInRange(long value, long min, long max) {
+            if (value < min || value > max) {
+                throw new IllegalArgumentException(value + " is outside " + min + ".." + max);
+            }
+        }
+
+        private static boolean addToBitSet(BitSet bits, int value, int min, int max) {
+            checkInRange(value, min, max);
+            int bit = value - min;
+            if (bits.get(bit)) return false;
+            bits.set(bit);
+            return true;
+        }
+    }
+
+    /**
+     * Set of ints with open addressing: values live directly in an int[] and
+     * collisions probe the next slot, so there is no Integer and no node per entry.
+     * 0 marks an empty slot; the value 0 itself is tracked with a separate flag.
+     */
+    static class IntHashSet {
+        private int[] slots = new int[16];
+        private int size;
+        private boolean containsZero;
+
+        private static int mix(int value) {
+            int h = value * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        public boolean add(int value) {
+            if (value == 0) {
+                if (containsZero) return false;
+                containsZero = true;
+                return true;
+            }
+            int mask = slots.length - 1;
+            int i = mix(value) & mask;
+            while (slots[i] != 0) {
+                if (slots[i] == value) return false;
+                i = (i + 1) & mask;
+            }
+            slots[i] = value;
+            if (++size * 2 > slots.length) {
+                resize(); // Keep the table at most half full so probe runs stay short
+            }
+            return true;
+        }
+
+        public boolean contains(int value) {
+            if (value == 0) return containsZero;
+            int mask = slots.length - 1;
+            for (int i = mix(value) & mask; slots[i] != 0; i = (i + 1) & mask) {
+                if (slots[i] == value) return true;
+            }
+            return false;
+        }
+
+        private void resize() {
+            int[] old = slots;
+            slots = new int[old.length * 2];
+            int mask = slots.length - 1;
+            for (int value : old) {
+                if (value != 0) {
+                    int i = mix(value) & mask;
+                    while (slots[i] != 0) i = (i + 1) & mask;
+                    slots[i] = value;
+                }
+            }
+        }
+
+        public void addAll(IntHashSet other) {
+            if (other.containsZero) add(0);
+            for (int value : other.slots) {
+                if (value != 0) add(value);
+            }
+        }
+
+        public int size() {
+            return size + (containsZero ? 1 : 0);
+        }
+
+        public IntStream stream() {
+            IntStream nonZero = Arrays.stream(slots).filter(value -> value != 0);
+            return containsZero ? IntStream.concat(IntStream.of(0), nonZero) : nonZero;
+        }
+    }
+
+    /** {@link IntHashSet} for long values. */
+    static class LongHashSet {
+        private long[] slots = new long[16];
+        private int size;
+        private boolean containsZero;
+
+        private static int mix(long value) {
+            long h = value * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        public boolean add(long value) {
+            if (value == 0) {
+                if (containsZero) return false;
+                containsZero = true;
+                return true;
+            }
+            int mask = slots.length - 1;
+            int i = mix(value) & mask;
+            while (slots[i] != 0) {
+                if (slots[i] == value) return false;
+                i = (i + 1) & mask;
+            }
+            slots[i] = value;
+            if (++size * 2 > slots.length) {
+                resize();
+            }
+            return true;
+        }
+
+        public boolean contains(long value) {
+            if (value == 0) return containsZero;
+            int mask = slots.length - 1;
+            for (int i = mix(value) & mask; slots[i] != 0; i = (i + 1) & mask) {
+                if (slots[i] == value) return true;
+            }
+            return false;
+        }
+
+        private void resize() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            int mask = slots.length - 1;
+            for (long value : old) {
+                if (value != 0) {
+                    int i = mix(value) & mask;
+                    while (slots[i] != 0) i = (i + 1) & mask;
+                    slots[i] = value;
+                }
+            }
+        }
+
+        public void addAll(LongHashSet other) {
+            if (other.containsZero) add(0);
+            for (long value : other.slots) {
+                if (value != 0) add(value);
+            }
+        }
+
+        public int size() {
+            return size + (containsZero ? 1 : 0);
+        }
+
+        public LongStream stream() {
+            LongStream nonZero = Arrays.stream(slots).filter(value -> value != 0);
+            return containsZero ? LongStream.concat(LongStream.of(0), nonZero) : nonZero;
+        }
+    }
+
+    /**
+     * Compares boxed distinct() with the primitive operators on random ids.
+     * Run it with:  java 'JavaGenericsStreamsTutorial$DistinctBenchmark'
+     */
+    static class DistinctBenchmark {
+        public static void main(String[] args) {
+            System.out.println("values,distinct_range,method,millis");
+            for (int count = 100_000; count <= 10_000_000; count *= 10) {
+                int range = count / 4;
+                int[] ids = new Random(42).ints(count, 0, range).toArray();
+                List<Integer> boxed = Arrays.stream(ids).boxed().collect(Collectors.toList());
+                time(count, range, "boxed-distinct", () -> boxed.stream().distinct().count());
+                time(count, range, "hash", () -> PrimitiveDistinct.distinct(Arrays.stream(ids)).count());
+                // The range decides the set: a bitset for the tight one, the hash set for the wide one
+                time(count, range, "in-range", () -> PrimitiveDistinct.distinctInRange(Arrays.stream(ids), 0, range).count());
+                time(count, range, "in-wide-range",
+                        () -> PrimitiveDistinct.distinctInRange(Arrays.stream(ids), Integer.MIN_VALUE, Integer.MAX_VALUE).count());
+                time(count, range, "parallel-hash", () -> PrimitiveDistinct.parallelDistinct(Arrays.stream(ids)).count());
+                time(count, range, "parallel-bitset",
+                        () -> PrimitiveDistinct.parallelDistinctInRange(Arrays.stream(ids), 0, range).count());
+            }
+        }
+
+        private static void time(int count, int range, String method, Supplier<Long> task) {
+            task.get(); // Warm-up
+            long start = System.nanoTime();
+            long distinct = task.get();
+            System.out.printf(Locale.ROOT, "%d,%d,%s,%.2f%n", count, range, method, (System.nanoTime() - start) / 1e6);
+            if (distinct < 0) {
+                System.out.println(); // Keep the result alive
+            }
+        }
+    }
+
+    /**
+     * Asynchronous, batched output. Producer threads hand finished lines to a
+     * bounded lock-free ring buffer and return immediately; a single writer thread
+     * drains the ring and copies many lines into one large buffer per write to stdout
+     * or a file, instead of one synchronized System.out write per line.
+     *
+     * <p>When the ring is full, {@link Overflow#BLOCK} makes producers wait for space,
+     * while {@link Overflow#DROP} discards the line and counts it; if the writer has
+     * stopped, blocked producers fail instead of waiting forever. {@link #close()}
+     * flushes everything still queued, including unterminated text that any thread
+     * printed through {@link #asPrintStream()}.
+     *
+     * <p>Existing printing code can use it through {@link #asPrintStream()}, either
+     * passed in explicitly or installed with {@code System.setOut(...)}.
+     */
+    static class AsyncOutput implements AutoCloseable {
+        enum Overflow { BLOCK, DROP }
+
+        private static final int WRITE_BUFFER_BYTES = 1 << 20;
+        private static final long IDLE_PARK_NANOS = 1_000_000;
+
+        // Bounded multi-producer ring: each slot's sequence number says whether it is
+        // free for the producer at a given position or filled for the consumer
+        private final AtomicReferenceArray<byte[]> slots;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong(); // Next position producers claim
+        private volatile long written;                    // Positions below this are on the channel
+
+        private final Overflow overflow;
+        private final WritableByteChannel channel;
+        private final boolean ownsChannel;
+        private final LongAdder dropped = new LongAdder();
+        private final Thread writer;
+        private volatile IOException failure;
+
+        // Shutdown handshake: close() sets closing, waits until no producer is inside
+        // offer(), then sets quiesced; only then may the writer stop once it is drained,
+        // so a producer that got past the closing check never loses its line
+        private final AtomicInteger activeProducers = new AtomicInteger();
+        private volatile boolean closing;
+        private volatile boolean quiesced;
+
+        // Streams from asPrintStream() holding an unterminated line
+        private final Set<LineOutputStream> partialLines = ConcurrentHashMap.newKeySet();
+
+        private AsyncOutput(WritableByteChannel channel, boolean ownsChannel, int capacity, Overflow overflow) {
+            int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1); // Round up to a power of two
+            this.slots = new AtomicReferenceArray<>(size);
+            this.sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+            this.mask = size - 1;
+            this.channel = channel;
+            this.ownsChannel = ownsChannel;
+            this.overflow = overflow;
+            this.writer = new Thread(this::drainLoop, "async-output");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+
+        /** Writes to the process's standard output, bypassing the System.out lock. */
+        public static AsyncOutput toStdout(int capacity, Overflow overflow) {
+            return new AsyncOutput(Channels.newChannel(new FileOutputStream(FileDescriptor.out)), false, capacity, overflow);
+        }
+
+        public static AsyncOutput toFile(Path file, int capacity, Overflow overflow) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            return new AsyncOutput(channel, true, capacity, overflow);
+        }
+
+        public boolean print(CharSequence text) {
+            return offer(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        public boolean println(CharSequence text) {
+            return offer((text + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Queues already-encoded bytes. Returns false if the line was dropped
+         * because the ring was full and the policy is {@link Overflow#DROP}.
+         */
+        public boolean offer(byte[] bytes) {
+            activeProducers.incrementAndGet(); // Before the closing check; see close()
+            try {
+                if (closing) {
+                    throw new IllegalStateException("AsyncOutput is closed");
+                }
+                return enqueue(bytes);
+            } finally {
+                activeProducers.decrementAndGet();
+            }
+        }
+
+        private boolean enqueue(byte[] bytes) {
+            while (true) {
+                long position = tail.get();
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        slots.set(index, bytes);
+                        sequences.set(index, position + 1); // Publish to the writer
+                        return true;
+                    }
+                } else if (difference < 0) {
+                    // Full: the writer has not yet freed the slot from one lap ago
+                    if (overflow == Overflow.DROP) {
+                        dropped.increment();
+                        return false;
+                    }
+                    if (!writer.isAlive()) {
+                        // Nobody will ever free a slot
+                        throw new UncheckedIOException("Asynchronous output failed", failure);
+                    }
+                    LockSupport.unpark(writer);
+                    Thread.yield(); // Let the writer run; spinning would starve it on few cores
+                }
+                // difference > 0: another producer took this position, try the next one
+            }
+        }
+
+        public long droppedLines() {
+            return dropped.sum();
+        }
+
+        /** Waits until everything queued before this call has been written. */
+        public void flush() {
+            long target = tail.get();
+            while (written < target && writer.isAlive()) {
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(50_000);
+            }
+        }
+
+        private void drainLoop() {
+            ByteBuffer batch = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+            long head = 0;
+            try {
+                while (true) {
+                    boolean wasQuiesced = quiesced;
+                    // Take every line that is ready, up to one buffer's worth
+                    while (true) {
+                        int index = (int) head & mask;
+                        if (sequences.get(index) != head + 1) {
+                            break; // Not published yet
+                        }
+                        byte[] bytes = slots.get(index);
+                        if (bytes.length > batch.remaining()) {
+                            if (batch.position() > 0) {
+                                writeAll(batch);
+                            }
+                            if (bytes.length > batch.capacity()) {
+                                writeFully(ByteBuffer.wrap(bytes));
+                                bytes = new byte[0];
+                            }
+                        }
+                        batch.put(bytes);
+                        slots.set(index, null);
+                        sequences.set(index, head + mask + 1); // Free the slot for the next lap
+                        head++;
+                    }
+                    if (batch.position() > 0) {
+                        writeAll(batch);
+                    }
+                    written = head;
+                    if (wasQuiesced && head == tail.get()) {
+                        return; // Fully drained, and no producer can add more
+                    }
+                    if (head == tail.get()) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        // Writes out a batch that was being filled, then empties it
+        private void writeAll(ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * A PrintStream that feeds this sink. It hands over whole lines, each as one
+         * record however long it is, so a println from one thread never interleaves
+         * with another's. As with System.out, a line that several threads build up
+         * with separate print calls can still mix.
+         */
+        public PrintStream asPrintStream() {
+            return new PrintStream(new LineOutputStream(), false, StandardCharsets.UTF_8);
+        }
+
+        // PrintStream already serializes its writes, so one buffer per stream is enough;
+        // the stream's own lock matters only when close() drains it from another thread
+        private class LineOutputStream extends OutputStream {
+            private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) {
+                line.write(bytes, offset, length);
+                if (length > 0 && bytes[offset + length - 1] == '\n') {
+                    offerLine();
+                } else if (line.size() > 0) {
+                    partialLines.add(this);
+                }
+            }
+
+            @Override
+            public void flush() {
+                offerLine();
+                AsyncOutput.this.flush();
+            }
+
+            @Override
+            public void close() {
+                offerLine();
+            }
+
+            synchronized void offerLine() {
+                if (line.size() > 0) {
+                    offer(line.toByteArray());
+                    line.reset();
+                }
+                partialLines.remove(this);
+            }
+        }
+
+        @Override
+        public void close() {
+            // Hand over text other threads printed without a final newline
+            for (LineOutputStream stream : partialLines) {
+                stream.offerLine();
+            }
+            closing = true;
+            while (activeProducers.get() != 0) {
+                Thread.yield(); // A producer that passed the closing check finishes its offer
+            }
+            quiesced = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+                if (ownsChannel) {
+                    channel.close();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Asynchronous output failed", failure);
+            }
+        }
+    }
+
+    // Section: Windowed aggregation
+    // Collectors need the whole stream before they produce anything, so they cannot work on an
+    // event stream that never ends. A windowed aggregator keeps a running result per time window
+    // and reports each window as soon as time moves past its end.
+
+    public static void windowedAggregationDemo() {
+        String[] fruits = {"apple", "banana", "cherry", "date", "elderberry", "fig"};
+        // Windows of 1 second that start every 500 ms; each event is a word seen at some time
+        long[] clock = {0};
+        WindowedAggregator<String> timed = new WindowedAggregator<>(1_000, 500,
+                word -> clock[0],
+                String::length,
+                word -> word,
+                window -> System.out.println("Window " + window));
+        // Same filter/map/count steps as streamsDemo, but results arrive per window
+        Stream.iterate(0, i -> i + 1)
+              .limit(30)                                   // An endless stream in real use
+              .peek(i -> clock[0] = i * 100L)              // One event every 100 ms
+              .map(i -> fruits[i % fruits.length])
+              .filter(word -> word.length() > 3)           // Filter
+              .forEach(timed);                             // Count, sum and distinct per window
+        timed.flush();
+
+        // Events may arrive out of order: the one at 200 ms comes after the one at 700 ms
+        // but is still inside the first window, so it counts there like any other
+        WindowedAggregator<String> reordered = new WindowedAggregator<>(1_000, 500,
+                word -> clock[0],
+                String::length,
+                word -> word,
+                window -> System.out.println("Reordered window " + window));
+        long[] times = {700, 200, 900};
+        for (int i = 0; i < times.length; i++) {
+            clock[0] = times[i];
+            reordered.accept(fruits[i]);
+        }
+        reordered.flush();
+    }
+
+    /**
+     * Incremental count, sum and distinct-count over tumbling or sliding time windows.
+     *
+     * <p>Time is cut into panes of one slide each; a window is the last
+     * {@code windowMillis / slideMillis} panes. Each element updates one pane and
+     * the running window totals in O(1). When time moves past a window's end, the
+     * window is reported and its oldest pane is subtracted from the totals and
+     * reused, so nothing is ever rescanned and memory is a fixed ring of panes
+     * however long the stream runs.
+     *
+     * <p>Distinct counts use a small HyperLogLog sketch per pane (about 3% error);
+     * sketches merge, so a window's distinct count is the union of its panes'.
+     * Elements older than the oldest pane still kept are counted as late and ignored.
+     */
+    static class WindowedAggregator<T> implements Consumer<T> {
+        private static final int SKETCH_BITS = 10;
+        private static final int REGISTERS = 1 << SKETCH_BITS;
+
+        private final long slideMillis;
+        private final int panesPerWindow;
+        private final ToLongFunction<T> timestampOf;
+        private final ToLongFunction<T> valueOf;
+        private final Function<T, ?> keyOf;
+        private final Consumer<WindowResult> onWindowClosed;
+
+        private final long[] paneIndex;
+        private final long[] paneCount;
+        private final long[] paneSum;
+        private final byte[][] paneSketch;
+
+        private long head = Long.MIN_VALUE; // Newest pane seen so far
+        private long windowCount;           // Totals over the panes in the ring
+        private long windowSum;
+        private long lateElements;
+
+        public WindowedAggregator(long windowMillis, long slideMillis, ToLongFunction<T> timestampOf,
+                                  ToLongFunction<T> valueOf, Function<T, ?> keyOf,
+                                  Consumer<WindowResult> onWindowClosed) {
+            if (windowMillis <= 0 || slideMillis <= 0 || windowMillis % slideMillis != 0) {
+                throw new IllegalArgumentException("Window size must be a positive multiple of the slide");
+            }
+            if (windowMillis / slideMillis > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many panes per window: " + windowMillis / slideMillis);
+            }
+            this.slideMillis = slideMillis;
+            this.panesPerWindow = (int) (windowMillis / slideMillis);
+            this.timestampOf = timestampOf;
+            this.valueOf = valueOf;
+            this.keyOf = keyOf;
+            this.onWindowClosed = onWindowClosed;
+            this.paneIndex = new long[panesPerWindow];
+            this.paneCount = new long[panesPerWindow];
+            this.paneSum = new long[panesPerWindow];
+            this.paneSketch = new byte[panesPerWindow][REGISTERS];
+            Arrays.fill(paneIndex, Long.MIN_VALUE);
+        }
+
+        /** Tumbling windows: each element belongs to exactly one window. */
+        public static <T> WindowedAggregator<T> tumbling(long windowMillis, ToLongFunction<T> timestampOf,
+                                                         ToLongFunction<T> valueOf, Function<T, ?> keyOf,
+                                                         Consumer<WindowResult> onWindowClosed) {
+            return new WindowedAggregator<>(windowMillis, windowMillis, timestampOf, valueOf, keyOf, onWindowClosed);
+        }
+
+        @Override
+        public void accept(T element) {
+            long pane = Math.floorDiv(timestampOf.applyAsLong(element), slideMillis);
+            if (head == Long.MIN_VALUE) {
+                head = pane;
+                resetWindow();
+            } else if (pane > head) {
+                advanceTo(pane);
+            } else if (pane <= head - panesPerWindow) {
+                lateElements++;
+                return;
+            }
+
+            int slot = slotOf(pane);
+            long value = valueOf.applyAsLong(element);
+            paneCount[slot]++;
+            paneSum[slot] += value;
+            windowCount++;
+            windowSum += value;
+            addToSketch(paneSketch[slot], keyOf.apply(element));
+        }
+
+        /** Reports every window that still holds data, as if time had moved past them all. */
+        public void flush() {
+            if (head != Long.MIN_VALUE) {
+                advanceTo(head + panesPerWindow);
+            }
+        }
+
+        public long lateElements() {
+            return lateElements;
+        }
+
+        private int slotOf(long pane) {
+            return (int) Math.floorMod(pane, (long) panesPerWindow);
+        }
+
+        private void resetPane(long pane) {
+            int slot = slotOf(pane);
+            paneIndex[slot] = pane;
+            paneCount[slot] = 0;
+            paneSum[slot] = 0;
+            Arrays.fill(paneSketch[slot], (byte) 0);
+        }
+
+        // Stamps every pane of the window ending at head, not just head itself, so an
+        // out-of-order element for an earlier pane still in the window lands in a pane
+        // that currentWindow() includes
+        private void resetWindow() {
+            for (long p = head - panesPerWindow + 1; p <= head; p++) {
+                resetPane(p);
+            }
+        }
+
+        // Closes the window ending at each pane from head up to (not including) newHead
+        private void advanceTo(long newHead) {
+            while (head < newHead) {
+                if (windowCount > 0) {
+                    onWindowClosed.accept(currentWindow());
+                }
+                head++;
+                int slot = slotOf(head);
+                windowCount -= paneCount[slot]; // Evict the pane that just left the window
+                windowSum -= paneSum[slot];
+                resetPane(head);
+                if (windowCount == 0 && newHead - head > panesPerWindow) {
+                    // Long quiet period: every window in between is empty, skip straight ahead
+                    head = newHead - panesPerWindow;
+                    resetWindow();
+                }
+            }
+        }
+
+        private WindowResult currentWindow() {
+            long first = head - panesPerWindow + 1;
+            byte[] union = new byte[REGISTERS];
+            for (int slot = 0; slot < panesPerWindow; slot++) {
+                if (paneIndex[slot] >= first && paneIndex[slot] <= head) {
+                    byte[] sketch = paneSketch[slot];
+                    for (int r = 0; r < REGISTERS; r++) {
+                        union[r] = (byte) Math.max(union[r], sketch[r]);
+                    }
+                }
+            }
+            return new WindowResult(first * slideMillis, (head + 1) * slideMillis,
+                    windowCount, windowSum, estimateDistinct(union));
+        }
+
+        // ---- HyperLogLog ----
+
+        private static void addToSketch(byte[] registers, Object key) {
+            long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 32;
+            h *= 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 29;
+            int register = (int) (h >>> (64 - SKETCH_BITS));
+            int rank = Long.numberOfLeadingZeros((h << SKETCH_BITS) | (1L << (SKETCH_BITS - 1))) + 1;
+            if (rank > registers[register]) {
+                registers[register] = (byte) rank;
+            }
+        }
+
+        private static long estimateDistinct(byte[] registers) {
+            double sum = 0;
+            int zeros = 0;
+            for (byte rank : registers) {
+                sum += 1.0 / (1L << rank);
+                if (rank == 0) zeros++;
+            }
+            double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+            double estimate = alpha * REGISTERS * REGISTERS / sum;
+            if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+                estimate = REGISTERS * Math.log((double) REGISTERS / zeros); // Linear counting for small sets
+            }
+            return Math.round(estimate);
+        }
+    }
+
+    /** Aggregates of one closed window [start, end), in milliseconds. */
+    static class WindowResult {
+        final long start;
+        final long end;
+        final long count;
+        final long sum;
+        final long distinct;
+
+        WindowResult(long start, long end, long count, long sum, long distinct) {
+            this.start = start;
+            this.end = end;
+            this.count = count;
+            this.sum = sum;
+            this.distinct = distinct;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + "): count=" + count + ", sum=" + sum + ", distinct=" + distinct;
+        }
     }
 }
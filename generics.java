@@ -6,7 +6,27 @@
 // BEFORE GENERICS (Java 1.4 and earlier)
 // ========================================
 
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.stream.*;
+import java.util.zip.CRC32;
 
 class BeforeGenerics {
     public static void demonstrateProblems() {
@@ -66,8 +86,8 @@ class Box<T> {
 
 // Generic class with multiple type parameters
 class Pair<T, U> {
-    private T first;
-    private U second;
+    private final T first;
+    private final U second;
     
     public Pair(T first, U second) {
         this.first = first;
@@ -76,164 +96,3946 @@ class Pair<T, U> {
     
     public T getFirst() { return first; }
     public U getSecond() { return second; }
+
+    // Value semantics, so equal pairs can be shared (see Interner)
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Pair)) return false;
+        Pair<?, ?> other = (Pair<?, ?>) o;
+        return Objects.equals(first, other.first) && Objects.equals(second, other.second);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(first) + Objects.hashCode(second);
+    }
     
     @Override
     public String toString() {
         return "(" + first + ", " + second + ")";
     }
-}
+}
+
+// Read-only counterpart of Box. Box has a setter, so sharing one instance
+// between owners would be unsafe; an ImmutableBox can be shared freely.
+final class ImmutableBox<T> {
+    private final T content;
+
+    public ImmutableBox(T content) {
+        this.content = content;
+    }
+
+    public static <T> ImmutableBox<T> of(Box<T> box) {
+        return new ImmutableBox<>(box.get());
+    }
+
+    public T get() {
+        return content;
+    }
+
+    public boolean isEmpty() {
+        return content == null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ImmutableBox && Objects.equals(content, ((ImmutableBox<?>) o).content);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(content);
+    }
+
+    @Override
+    public String toString() {
+        return "ImmutableBox(" + content + ")";
+    }
+}
+
+// Flyweight pattern: a pool of canonical instances, like the String pool.
+// intern() returns the one shared instance equal to its argument, so millions
+// of equal immutable values (Pair, ImmutableBox, ...) cost the memory of one.
+//
+// The pool only holds weak references: once no caller uses a canonical value
+// any more, the GC can reclaim it and its entry is dropped on a later call.
+class Interner<T> {
+    private final ConcurrentHashMap<Object, WeakEntry<T>> pool = new ConcurrentHashMap<>();
+    private final ReferenceQueue<T> cleared = new ReferenceQueue<>();
+
+    // Map key and value at once. Two live entries are equal if their values are equal.
+    private static final class WeakEntry<T> extends WeakReference<T> {
+        private final int hash;
+
+        WeakEntry(T value, ReferenceQueue<T> queue) {
+            super(value, queue);
+            this.hash = value.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof WeakEntry)) return false;
+            Object value = get();
+            return value != null && value.equals(((WeakEntry<?>) o).get());
+        }
+    }
+
+    // Lookup key that holds the candidate strongly and never goes into the map
+    private static final class Probe {
+        private final Object value;
+
+        Probe(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof WeakEntry && value.equals(((WeakEntry<?>) o).get());
+        }
+    }
+
+    public T intern(T value) {
+        expungeCleared();
+        while (true) {
+            WeakEntry<T> existing = pool.get(new Probe(value));
+            if (existing != null) {
+                T canonical = existing.get();
+                if (canonical != null) {
+                    return canonical;
+                }
+                pool.remove(existing, existing); // Collected but not yet expunged
+                continue;
+            }
+            WeakEntry<T> entry = new WeakEntry<>(value, cleared);
+            WeakEntry<T> raced = pool.putIfAbsent(entry, entry);
+            if (raced == null) {
+                return value;
+            }
+            T canonical = raced.get();
+            if (canonical != null) {
+                return canonical; // Another thread interned an equal value first
+            }
+            pool.remove(raced, raced);
+        }
+    }
+
+    // Replaces every element of the array with its canonical instance
+    public void internAll(T[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = intern(values[i]);
+        }
+    }
+
+    public int size() {
+        expungeCleared();
+        return pool.size();
+    }
+
+    private void expungeCleared() {
+        Reference<? extends T> ref;
+        while ((ref = cleared.poll()) != null) {
+            pool.remove(ref, ref);
+        }
+    }
+
+    // Bulk mode for one-off batches: deduplicates against a plain local HashMap,
+    // with no weak references or shared pool, and returns how many duplicates
+    // were replaced by an earlier equal instance
+    public static <T> int deduplicate(T[] values) {
+        Map<T, T> seen = new HashMap<>();
+        int replaced = 0;
+        for (int i = 0; i < values.length; i++) {
+            T canonical = seen.putIfAbsent(values[i], values[i]);
+            if (canonical != null && canonical != values[i]) {
+                values[i] = canonical;
+                replaced++;
+            }
+        }
+        return replaced;
+    }
+}
+
+// ========================================
+// GENERIC METHODS
+// ========================================
+
+class GenericMethods {
+    
+    // Generic method to swap elements in an array
+    public static <T> void swap(T[] array, int i, int j) {
+        T temp = array[i];
+        array[i] = array[j];
+        array[j] = temp;
+    }
+    
+    // Generic method to find maximum element
+    public static <T extends Comparable<T>> T findMax(T[] array) {
+        if (array.length == 0) return null;
+        
+        T max = array[0];
+        for (int i = 1; i < array.length; i++) {
+            if (array[i].compareTo(max) > 0) {
+                max = array[i];
+            }
+        }
+        return max;
+    }
+    
+    // Generic method to convert array to list
+    public static <T> List<T> arrayToList(T[] array) {
+        List<T> list = new ArrayList<T>();
+        for (T item : array) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    // ---- Zero-copy list views ----
+
+    // A fixed-size List backed directly by the array: nothing is copied, and
+    // set() writes through. Use it instead of arrayToList when callers only read.
+    public static <T> List<T> listView(T[] array) {
+        return Arrays.asList(array);
+    }
+
+    // Primitive arrays cannot back Arrays.asList, so these views box each element
+    // on the way out instead of copying the whole array up front
+    public static List<Integer> listView(int[] array) {
+        return new IntListView(array);
+    }
+
+    public static List<Long> listView(long[] array) {
+        return new LongListView(array);
+    }
+
+    public static List<Double> listView(double[] array) {
+        return new DoubleListView(array);
+    }
+
+    static class IntListView extends AbstractList<Integer> implements RandomAccess {
+        private final int[] array;
+
+        IntListView(int[] array) { this.array = array; }
+
+        @Override public Integer get(int index) { return array[index]; }
+        @Override public int size() { return array.length; }
+
+        @Override
+        public Integer set(int index, Integer value) {
+            int old = array[index];
+            array[index] = value;
+            return old;
+        }
+    }
+
+    static class LongListView extends AbstractList<Long> implements RandomAccess {
+        private final long[] array;
+
+        LongListView(long[] array) { this.array = array; }
+
+        @Override public Long get(int index) { return array[index]; }
+        @Override public int size() { return array.length; }
+
+        @Override
+        public Long set(int index, Long value) {
+            long old = array[index];
+            array[index] = value;
+            return old;
+        }
+    }
+
+    static class DoubleListView extends AbstractList<Double> implements RandomAccess {
+        private final double[] array;
+
+        DoubleListView(double[] array) { this.array = array; }
+
+        @Override public Double get(int index) { return array[index]; }
+        @Override public int size() { return array.length; }
+
+        @Override
+        public Double set(int index, Double value) {
+            double old = array[index];
+            array[index] = value;
+            return old;
+        }
+    }
+
+    // ---- In-place bulk operations ----
+    //
+    // All of these rearrange the array they are given in place.
+    //   reverse   - last element first
+    //   rotate    - element i moves to (i + distance) mod length, via three reversals
+    //   shuffle   - Fisher-Yates: every permutation equally likely
+    //   permute   - array[i] becomes the old array[order[i]]; order is checked to be a
+    //               permutation before anything moves, then each cycle is followed
+    //               with swaps. order itself is never modified; the only allocation
+    //               is a bitset of length bits.
+    //   partition - moves elements matching the predicate to the front (not stable)
+    //               and returns how many matched
+    //
+    // Each one is written once, over indexes, and moves elements only through an
+    // IndexSwap. The primitive overloads exist to avoid boxing; all they add is
+    // how to swap two elements of their array type.
+
+    private interface IndexSwap {
+        void swap(int i, int j);
+    }
+
+    private static IndexSwap swapper(Object[] array) {
+        return (i, j) -> {
+            Object temp = array[i];
+            array[i] = array[j];
+            array[j] = temp;
+        };
+    }
+
+    private static IndexSwap swapper(int[] array) {
+        return (i, j) -> {
+            int temp = array[i];
+            array[i] = array[j];
+            array[j] = temp;
+        };
+    }
+
+    private static IndexSwap swapper(long[] array) {
+        return (i, j) -> {
+            long temp = array[i];
+            array[i] = array[j];
+            array[j] = temp;
+        };
+    }
+
+    private static IndexSwap swapper(double[] array) {
+        return (i, j) -> {
+            double temp = array[i];
+            array[i] = array[j];
+            array[j] = temp;
+        };
+    }
+
+    private static void reverseIndexes(int from, int to, IndexSwap swap) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            swap.swap(i, j);
+        }
+    }
+
+    private static void rotateIndexes(int length, int distance, IndexSwap swap) {
+        if (length == 0) return;
+        int d = Math.floorMod(distance, length);
+        reverseIndexes(0, length, swap);
+        reverseIndexes(0, d, swap);
+        reverseIndexes(d, length, swap);
+    }
+
+    private static void shuffleIndexes(int length, Random random, IndexSwap swap) {
+        for (int i = length - 1; i > 0; i--) {
+            swap.swap(i, random.nextInt(i + 1));
+        }
+    }
+
+    private static void walkCycles(int length, int[] order, IndexSwap swap) {
+        if (order.length != length) {
+            throw new IllegalArgumentException("order has " + order.length + " entries for " + length + " elements");
+        }
+        BitSet pending = new BitSet(length);
+        for (int k : order) {
+            if (k < 0 || k >= length || pending.get(k)) {
+                throw new IllegalArgumentException("order is not a permutation of 0.." + (length - 1));
+            }
+            pending.set(k);
+        }
+        // Walking start -> order[start] -> ... and swapping along the way pulls each
+        // element into place; the last swap leaves array[start]'s old value at the end
+        for (int start = pending.nextSetBit(0); start >= 0; start = pending.nextSetBit(start + 1)) {
+            pending.clear(start);
+            for (int j = start, k = order[j]; k != start; j = k, k = order[j]) {
+                swap.swap(j, k);
+                pending.clear(k);
+            }
+        }
+    }
+
+    // matches tests the element currently at an index
+    private static int partitionIndexes(int length, IntPredicate matches, IndexSwap swap) {
+        int boundary = 0;
+        for (int i = 0; i < length; i++) {
+            if (matches.test(i)) {
+                if (i != boundary) {
+                    swap.swap(i, boundary);
+                }
+                boundary++;
+            }
+        }
+        return boundary;
+    }
+
+    public static <T> void reverse(T[] array) {
+        reverseIndexes(0, array.length, swapper(array));
+    }
+
+    public static <T> void rotate(T[] array, int distance) {
+        rotateIndexes(array.length, distance, swapper(array));
+    }
+
+    public static <T> void shuffle(T[] array, Random random) {
+        shuffleIndexes(array.length, random, swapper(array));
+    }
+
+    public static <T> void permute(T[] array, int[] order) {
+        walkCycles(array.length, order, swapper(array));
+    }
+
+    public static <T> int partition(T[] array, Predicate<? super T> predicate) {
+        return partitionIndexes(array.length, i -> predicate.test(array[i]), swapper(array));
+    }
+
+    public static void reverse(int[] array) {
+        reverseIndexes(0, array.length, swapper(array));
+    }
+
+    public static void rotate(int[] array, int distance) {
+        rotateIndexes(array.length, distance, swapper(array));
+    }
+
+    public static void shuffle(int[] array, Random random) {
+        shuffleIndexes(array.length, random, swapper(array));
+    }
+
+    public static void permute(int[] array, int[] order) {
+        walkCycles(array.length, order, swapper(array));
+    }
+
+    public static int partition(int[] array, IntPredicate predicate) {
+        return partitionIndexes(array.length, i -> predicate.test(array[i]), swapper(array));
+    }
+
+    public static void reverse(long[] array) {
+        reverseIndexes(0, array.length, swapper(array));
+    }
+
+    public static void rotate(long[] array, int distance) {
+        rotateIndexes(array.length, distance, swapper(array));
+    }
+
+    public static void shuffle(long[] array, Random random) {
+        shuffleIndexes(array.length, random, swapper(array));
+    }
+
+    public static void permute(long[] array, int[] order) {
+        walkCycles(array.length, order, swapper(array));
+    }
+
+    public static int partition(long[] array, LongPredicate predicate) {
+        return partitionIndexes(array.length, i -> predicate.test(array[i]), swapper(array));
+    }
+
+    public static void reverse(double[] array) {
+        reverseIndexes(0, array.length, swapper(array));
+    }
+
+    public static void rotate(double[] array, int distance) {
+        rotateIndexes(array.length, distance, swapper(array));
+    }
+
+    public static void shuffle(double[] array, Random random) {
+        shuffleIndexes(array.length, random, swapper(array));
+    }
+
+    public static void permute(double[] array, int[] order) {
+        walkCycles(array.length, order, swapper(array));
+    }
+
+    public static int partition(double[] array, DoublePredicate predicate) {
+        return partitionIndexes(array.length, i -> predicate.test(array[i]), swapper(array));
+    }
+
+    // Below this many elements, splitting the work costs more than it saves
+    static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    // Same result as findMax, but the array is split in halves recursively
+    // and the halves are scanned on all cores of the common fork/join pool
+    public static <T extends Comparable<T>> T parallelFindMax(T[] array) {
+        if (array.length == 0) return null;
+        return ForkJoinPool.commonPool().invoke(new MaxTask<>(array, 0, array.length));
+    }
+
+    static class MaxTask<T extends Comparable<T>> extends RecursiveTask<T> {
+        // ForkJoinTask is Serializable, but a task is never meant to outlive the pool run
+        private static final long serialVersionUID = 1L;
+        private final transient T[] array;
+        private final int from;
+        private final int to;
+
+        MaxTask(T[] array, int from, int to) {
+            this.array = array;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                T max = array[from];
+                for (int i = from + 1; i < to; i++) {
+                    if (array[i].compareTo(max) > 0) {
+                        max = array[i];
+                    }
+                }
+                return max;
+            }
+            int mid = (from + to) >>> 1;
+            MaxTask<T> left = new MaxTask<>(array, from, mid);
+            left.fork();
+            T rightMax = new MaxTask<>(array, mid, to).compute();
+            T leftMax = left.join();
+            return rightMax.compareTo(leftMax) > 0 ? rightMax : leftMax; // Ties keep the first, like findMax
+        }
+    }
+
+    // Primitive overloads: no boxing and no compareTo call per element. Four
+    // independent accumulators break the dependency chain between iterations,
+    // which lets the JIT unroll the loop and use SIMD max instructions.
+    public static int findMax(int[] array) {
+        requireNonEmpty(array.length);
+        return maxOf(array, 0, array.length);
+    }
+
+    public static long findMax(long[] array) {
+        requireNonEmpty(array.length);
+        return maxOf(array, 0, array.length);
+    }
+
+    // NaN counts as the largest value, the same as Double.compareTo
+    public static double findMax(double[] array) {
+        requireNonEmpty(array.length);
+        return maxOf(array, 0, array.length);
+    }
+
+    public static int parallelFindMax(int[] array) {
+        requireNonEmpty(array.length);
+        return chunks(array.length).parallel()
+                .map(c -> maxOf(array, chunkStart(c, array.length), chunkStart(c + 1, array.length)))
+                .max().getAsInt();
+    }
+
+    public static long parallelFindMax(long[] array) {
+        requireNonEmpty(array.length);
+        return chunks(array.length).parallel()
+                .mapToLong(c -> maxOf(array, chunkStart(c, array.length), chunkStart(c + 1, array.length)))
+                .max().getAsLong();
+    }
+
+    public static double parallelFindMax(double[] array) {
+        requireNonEmpty(array.length);
+        return chunks(array.length).parallel()
+                .mapToDouble(c -> maxOf(array, chunkStart(c, array.length), chunkStart(c + 1, array.length)))
+                .reduce(Double.NEGATIVE_INFINITY, Math::max);
+    }
+
+    private static void requireNonEmpty(int length) {
+        if (length == 0) {
+            throw new IllegalArgumentException("Cannot find the maximum of an empty array");
+        }
+    }
+
+    private static IntStream chunks(int length) {
+        return IntStream.range(0, (length + PARALLEL_THRESHOLD - 1) / PARALLEL_THRESHOLD);
+    }
+
+    private static int chunkStart(int chunk, int length) {
+        return (int) Math.min((long) chunk * PARALLEL_THRESHOLD, length);
+    }
+
+    private static int maxOf(int[] a, int from, int to) {
+        int m0 = a[from], m1 = m0, m2 = m0, m3 = m0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.max(m0, a[i]);
+            m1 = Math.max(m1, a[i + 1]);
+            m2 = Math.max(m2, a[i + 2]);
+            m3 = Math.max(m3, a[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.max(m0, a[i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    private static long maxOf(long[] a, int from, int to) {
+        long m0 = a[from], m1 = m0, m2 = m0, m3 = m0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.max(m0, a[i]);
+            m1 = Math.max(m1, a[i + 1]);
+            m2 = Math.max(m2, a[i + 2]);
+            m3 = Math.max(m3, a[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.max(m0, a[i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    private static double maxOf(double[] a, int from, int to) {
+        double m0 = a[from], m1 = m0, m2 = m0, m3 = m0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.max(m0, a[i]);
+            m1 = Math.max(m1, a[i + 1]);
+            m2 = Math.max(m2, a[i + 2]);
+            m3 = Math.max(m3, a[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.max(m0, a[i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    // The k largest elements, largest first. A min-heap of size k holds the best
+    // candidates so far, so the cost is O(n log k) and only k elements are kept.
+    public static <T> List<T> topK(T[] array, int k, Comparator<? super T> comparator) {
+        PriorityQueue<T> best = topKHeap(array, 0, array.length, k, comparator);
+        return drainLargestFirst(best, comparator);
+    }
+
+    // Each chunk keeps its own top k in parallel; the chunk winners are then merged
+    public static <T> List<T> parallelTopK(T[] array, int k, Comparator<? super T> comparator) {
+        PriorityQueue<T> best = chunks(array.length).parallel()
+                .mapToObj(c -> topKHeap(array, chunkStart(c, array.length), chunkStart(c + 1, array.length), k, comparator))
+                .reduce(new PriorityQueue<>(comparator), (a, b) -> {
+                    PriorityQueue<T> merged = new PriorityQueue<>(heapCapacity(k, a.size() + b.size()), comparator);
+                    offerAll(merged, a, k, comparator);
+                    offerAll(merged, b, k, comparator);
+                    return merged;
+                });
+        return drainLargestFirst(best, comparator);
+    }
+
+    private static <T> PriorityQueue<T> topKHeap(T[] array, int from, int to, int k, Comparator<? super T> comparator) {
+        PriorityQueue<T> best = new PriorityQueue<>(heapCapacity(k, to - from), comparator);
+        for (int i = from; i < to && k > 0; i++) {
+            if (best.size() < k) {
+                best.add(array[i]);
+            } else if (comparator.compare(array[i], best.peek()) > 0) {
+                best.poll(); // Replace the smallest of the current top k
+                best.add(array[i]);
+            }
+        }
+        return best;
+    }
+
+    // A top-k heap never holds more than k elements, nor more than the n it is
+    // offered, so k = Integer.MAX_VALUE ("all") sizes it to the input
+    private static int heapCapacity(int k, int n) {
+        return Math.max(1, Math.min(k, n));
+    }
+
+    private static <T> void offerAll(PriorityQueue<T> heap, Collection<T> items, int k, Comparator<? super T> comparator) {
+        for (T item : items) {
+            if (heap.size() < k) {
+                heap.add(item);
+            } else if (k > 0 && comparator.compare(item, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(item);
+            }
+        }
+    }
+
+    private static <T> List<T> drainLargestFirst(PriorityQueue<T> heap, Comparator<? super T> comparator) {
+        List<T> result = new ArrayList<>(heap);
+        result.sort(comparator.reversed());
+        return result;
+    }
+}
+
+// ========================================
+// PRIMITIVE SPECIALIZATIONS
+// ========================================
+
+// Generics only work with reference types, so Box<Integer> stores every int as
+// a heap-allocated Integer. On hot numeric paths, hand-written primitive
+// versions with the same API avoid that boxing entirely.
+
+class IntBox {
+    private int content;
+    private boolean present; // Stands in for Box's "content == null"
+
+    public void set(int content) {
+        this.content = content;
+        this.present = true;
+    }
+
+    public int get() {
+        return content;
+    }
+
+    public boolean isEmpty() {
+        return !present;
+    }
+}
+
+class LongBox {
+    private long content;
+    private boolean present;
+
+    public void set(long content) {
+        this.content = content;
+        this.present = true;
+    }
+
+    public long get() {
+        return content;
+    }
+
+    public boolean isEmpty() {
+        return !present;
+    }
+}
+
+class DoubleBox {
+    private double content;
+    private boolean present;
+
+    public void set(double content) {
+        this.content = content;
+        this.present = true;
+    }
+
+    public double get() {
+        return content;
+    }
+
+    public boolean isEmpty() {
+        return !present;
+    }
+}
+
+class IntIntPair {
+    private final int first;
+    private final int second;
+
+    public IntIntPair(int first, int second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    public int getFirst() { return first; }
+    public int getSecond() { return second; }
+
+    @Override
+    public String toString() {
+        return "(" + first + ", " + second + ")";
+    }
+}
+
+class IntDoublePair {
+    private final int first;
+    private final double second;
+
+    public IntDoublePair(int first, double second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    public int getFirst() { return first; }
+    public double getSecond() { return second; }
+
+    @Override
+    public String toString() {
+        return "(" + first + ", " + second + ")";
+    }
+}
+
+class LongDoublePair {
+    private final long first;
+    private final double second;
+
+    public LongDoublePair(long first, double second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    public long getFirst() { return first; }
+    public double getSecond() { return second; }
+
+    @Override
+    public String toString() {
+        return "(" + first + ", " + second + ")";
+    }
+}
+
+// NumberBox equivalents: the value is already primitive, so there is
+// no virtual Number.doubleValue() call, just a widening conversion
+class IntNumberBox {
+    private final int number;
+
+    public IntNumberBox(int number) {
+        this.number = number;
+    }
+
+    public double getDoubleValue() {
+        return number;
+    }
+
+    public boolean isPositive() {
+        return number > 0;
+    }
+}
+
+class LongNumberBox {
+    private final long number;
+
+    public LongNumberBox(long number) {
+        this.number = number;
+    }
+
+    public double getDoubleValue() {
+        return number;
+    }
+
+    public boolean isPositive() {
+        return number > 0;
+    }
+}
+
+class DoubleNumberBox {
+    private final double number;
+
+    public DoubleNumberBox(double number) {
+        this.number = number;
+    }
+
+    public double getDoubleValue() {
+        return number;
+    }
+
+    public boolean isPositive() {
+        return number > 0;
+    }
+}
+
+// ========================================
+// BOUNDED TYPE PARAMETERS
+// ========================================
+
+// Upper bounded: T must extend Number
+class NumberBox<T extends Number> {
+    private T number;
+    
+    public NumberBox(T number) {
+        this.number = number;
+    }
+    
+    public double getDoubleValue() {
+        return number.doubleValue(); // Can call Number methods
+    }
+    
+    public boolean isPositive() {
+        return number.doubleValue() > 0;
+    }
+}
+
+// Multiple bounds: T must extend Number AND implement Comparable
+class ComparableNumberBox<T extends Number & Comparable<T>> {
+    private T number;
+    
+    public ComparableNumberBox(T number) {
+        this.number = number;
+    }
+    
+    public boolean isGreaterThan(T other) {
+        return number.compareTo(other) > 0; // Can use Comparable methods
+    }
+}
+
+// ========================================
+// WILDCARDS
+// ========================================
+
+class WildcardExamples {
+    
+    // Upper bounded wildcard: can read but not write
+    public static void printNumbers(List<? extends Number> numbers) {
+        printNumbers(numbers, System.out);
+    }
+
+    // Same, to any PrintStream (e.g. an asynchronous, batched one for bulk output)
+    public static void printNumbers(List<? extends Number> numbers, PrintStream out) {
+        for (Number num : numbers) {
+            out.println(num);
+        }
+        // numbers.add(42); // Compile error! Can't add to ? extends
+    }
+    
+    // Lower bounded wildcard: can write but limited reading
+    public static void addNumbers(List<? super Integer> numbers) {
+        numbers.add(42);
+        numbers.add(100);
+        // Integer num = numbers.get(0); // Compile error! Can only get Object
+    }
+    
+    // Unbounded wildcard
+    public static void printListSize(List<?> list) {
+        System.out.println("List size: " + list.size());
+        // Can only call methods that don't depend on type parameter
+    }
+}
+
+// List<? extends Number> stores every value as a separate heap object and reads
+// it back through a virtual Number method. NumberColumn keeps one primitive
+// array instead (int, long or double), so aggregations are plain loops over
+// contiguous memory that the JIT can unroll and vectorize. asList() still lets
+// it be passed to APIs that take List<? extends Number>.
+class NumberColumn {
+    enum Type { INT, LONG, DOUBLE }
+
+    private final Type type;
+    private int[] ints;
+    private long[] longs;
+    private double[] doubles;
+    private int size;
+
+    private NumberColumn(Type type, int capacity) {
+        this.type = type;
+        switch (type) {
+            case INT: ints = new int[capacity]; break;
+            case LONG: longs = new long[capacity]; break;
+            default: doubles = new double[capacity]; break;
+        }
+    }
+
+    public static NumberColumn ofInts() { return new NumberColumn(Type.INT, 16); }
+    public static NumberColumn ofLongs() { return new NumberColumn(Type.LONG, 16); }
+    public static NumberColumn ofDoubles() { return new NumberColumn(Type.DOUBLE, 16); }
+
+    public Type type() {
+        return type;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int needed) {
+        int capacity = type == Type.INT ? ints.length : type == Type.LONG ? longs.length : doubles.length;
+        if (needed <= capacity) return;
+        int newCapacity = Math.max(needed, capacity + (capacity >> 1) + 1);
+        switch (type) {
+            case INT: ints = Arrays.copyOf(ints, newCapacity); break;
+            case LONG: longs = Arrays.copyOf(longs, newCapacity); break;
+            default: doubles = Arrays.copyOf(doubles, newCapacity); break;
+        }
+    }
+
+    // ---- Appending ----
+    // Values widen into wider columns (int -> long -> double) but never narrow
+
+    public void append(int value) {
+        ensureCapacity(size + 1);
+        switch (type) {
+            case INT: ints[size++] = value; break;
+            case LONG: longs[size++] = value; break;
+            default: doubles[size++] = value; break;
+        }
+    }
+
+    public void append(long value) {
+        ensureCapacity(size + 1);
+        switch (type) {
+            case INT: throw new IllegalArgumentException("Cannot store a long in an int column");
+            case LONG: longs[size++] = value; break;
+            default: doubles[size++] = value; break;
+        }
+    }
+
+    public void append(double value) {
+        if (type != Type.DOUBLE) {
+            throw new IllegalArgumentException("Cannot store a double in a " + type + " column");
+        }
+        ensureCapacity(size + 1);
+        doubles[size++] = value;
+    }
+
+    public void appendAll(int[] values) {
+        ensureCapacity(size + values.length);
+        switch (type) {
+            case INT:
+                System.arraycopy(values, 0, ints, size, values.length);
+                break;
+            case LONG:
+                for (int i = 0; i < values.length; i++) longs[size + i] = values[i];
+                break;
+            default:
+                for (int i = 0; i < values.length; i++) doubles[size + i] = values[i];
+                break;
+        }
+        size += values.length;
+    }
+
+    public void appendAll(long[] values) {
+        if (type == Type.INT) {
+            throw new IllegalArgumentException("Cannot store longs in an int column");
+        }
+        ensureCapacity(size + values.length);
+        if (type == Type.LONG) {
+            System.arraycopy(values, 0, longs, size, values.length);
+        } else {
+            for (int i = 0; i < values.length; i++) doubles[size + i] = values[i];
+        }
+        size += values.length;
+    }
+
+    public void appendAll(double[] values) {
+        if (type != Type.DOUBLE) {
+            throw new IllegalArgumentException("Cannot store doubles in a " + type + " column");
+        }
+        ensureCapacity(size + values.length);
+        System.arraycopy(values, 0, doubles, size, values.length);
+        size += values.length;
+    }
+
+    // ---- Reading ----
+
+    public double getDouble(int index) {
+        Objects.checkIndex(index, size);
+        switch (type) {
+            case INT: return ints[index];
+            case LONG: return longs[index];
+            default: return doubles[index];
+        }
+    }
+
+    public long getLong(int index) {
+        Objects.checkIndex(index, size);
+        switch (type) {
+            case INT: return ints[index];
+            case LONG: return longs[index];
+            default: return (long) doubles[index];
+        }
+    }
+
+    // ---- Aggregations ----
+    // Each loop keeps independent partial results so iterations do not wait on each other
+
+    // Exact sum for int and long columns (int values are summed in a long)
+    public long sumAsLong() {
+        long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        switch (type) {
+            case INT:
+                for (; i + 3 < size; i += 4) {
+                    s0 += ints[i]; s1 += ints[i + 1]; s2 += ints[i + 2]; s3 += ints[i + 3];
+                }
+                for (; i < size; i++) s0 += ints[i];
+                break;
+            case LONG:
+                for (; i + 3 < size; i += 4) {
+                    s0 += longs[i]; s1 += longs[i + 1]; s2 += longs[i + 2]; s3 += longs[i + 3];
+                }
+                for (; i < size; i++) s0 += longs[i];
+                break;
+            default:
+                throw new IllegalStateException("Use sum() for a double column");
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    public double sum() {
+        if (type != Type.DOUBLE) {
+            return sumAsLong();
+        }
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < size; i += 4) {
+            s0 += doubles[i]; s1 += doubles[i + 1]; s2 += doubles[i + 2]; s3 += doubles[i + 3];
+        }
+        for (; i < size; i++) s0 += doubles[i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public double mean() {
+        return size == 0 ? Double.NaN : sum() / size;
+    }
+
+    public double min() {
+        requireNonEmpty();
+        switch (type) {
+            case INT: {
+                int m = ints[0];
+                for (int i = 1; i < size; i++) m = Math.min(m, ints[i]);
+                return m;
+            }
+            case LONG: {
+                long m = longs[0];
+                for (int i = 1; i < size; i++) m = Math.min(m, longs[i]);
+                return m;
+            }
+            default: {
+                double m = doubles[0];
+                for (int i = 1; i < size; i++) m = Math.min(m, doubles[i]);
+                return m;
+            }
+        }
+    }
+
+    public double max() {
+        requireNonEmpty();
+        switch (type) {
+            case INT: {
+                int m = ints[0];
+                for (int i = 1; i < size; i++) m = Math.max(m, ints[i]);
+                return m;
+            }
+            case LONG: {
+                long m = longs[0];
+                for (int i = 1; i < size; i++) m = Math.max(m, longs[i]);
+                return m;
+            }
+            default: {
+                double m = doubles[0];
+                for (int i = 1; i < size; i++) m = Math.max(m, doubles[i]);
+                return m;
+            }
+        }
+    }
+
+    private void requireNonEmpty() {
+        if (size == 0) {
+            throw new IllegalStateException("Column is empty");
+        }
+    }
+
+    // Counts values into `bins` equal-width buckets over [low, high); values
+    // outside the range are not counted
+    public long[] histogram(double low, double high, int bins) {
+        long[] counts = new long[bins];
+        double scale = bins / (high - low);
+        for (int i = 0; i < size; i++) {
+            double value = type == Type.INT ? ints[i] : type == Type.LONG ? longs[i] : doubles[i];
+            if (value >= low && value < high) {
+                counts[Math.min(bins - 1, (int) ((value - low) * scale))]++;
+            }
+        }
+        return counts;
+    }
+
+    // ---- Interop with the wildcard APIs ----
+
+    // Read-only List<Number> over the column. Elements are boxed one at a time
+    // as they are read; the column itself is never copied.
+    public List<Number> asList() {
+        return new AbstractList<Number>() {
+            @Override
+            public Number get(int index) {
+                Objects.checkIndex(index, size);
+                switch (type) {
+                    case INT: return ints[index];
+                    case LONG: return longs[index];
+                    default: return doubles[index];
+                }
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
+
+// ========================================
+// GENERIC INTERFACES
+// ========================================
+
+interface Repository<T> {
+    void save(T entity);
+    T findById(int id);
+    List<T> findAll();
+    void delete(T entity);
+
+    // Bulk operations. The defaults just loop; implementations override them
+    // where a batch can share work, such as presizing storage or making one pass
+    // over the data instead of one per entity.
+    default void saveAll(Collection<? extends T> entities) {
+        for (T entity : entities) {
+            save(entity);
+        }
+    }
+
+    // Returns the entities found, in the order of ids; missing ids are skipped
+    default List<T> findAllById(Collection<Integer> ids) {
+        List<T> found = new ArrayList<>(ids.size());
+        for (int id : ids) {
+            T entity = findById(id);
+            if (entity != null) {
+                found.add(entity);
+            }
+        }
+        return found;
+    }
+
+    default void deleteAll(Collection<? extends T> entities) {
+        for (T entity : entities) {
+            delete(entity);
+        }
+    }
+
+    // Streaming access. Implementations override stream() with a view over their
+    // own storage, so exports and pages never copy the whole table like findAll().
+    default Stream<T> stream() {
+        return findAll().stream();
+    }
+
+    // Offset paging: fine for small offsets, but it still walks the skipped rows
+    default List<T> findPage(int offset, int limit) {
+        return stream().skip(offset).limit(limit).collect(Collectors.toList());
+    }
+
+    // Keyset paging: the next `limit` entities with an id greater than afterId,
+    // in id order. Pass the last id of one page to get the next one.
+    List<T> findAfter(int afterId, int limit);
+
+    // Keyset page from an id-ordered index: seeks to afterId and reads only the
+    // page, O(log n + limit) however big the repository is
+    static <T> List<T> keysetPage(NavigableMap<Integer, ? extends T> byId, int afterId, int limit) {
+        checkLimit(limit);
+        List<T> page = new ArrayList<>(Math.min(limit, 1024));
+        for (T entity : byId.tailMap(afterId, false).values()) {
+            if (page.size() >= limit) break;
+            page.add(entity);
+        }
+        return page;
+    }
+
+    // Fallback for storage without an id order: one pass over the stream, keeping
+    // only the `limit` smallest matching ids in a max-heap, so a page costs
+    // O(limit) memory but still O(n) time
+    static <T> List<T> keysetPage(Stream<T> entities, ToIntFunction<? super T> idOf, int afterId, int limit) {
+        checkLimit(limit);
+        Comparator<T> byId = Comparator.comparingInt(idOf);
+        PriorityQueue<T> smallest = new PriorityQueue<>(Math.max(1, limit), byId.reversed());
+        entities.forEachOrdered(entity -> {
+            if (idOf.applyAsInt(entity) > afterId) {
+                smallest.add(entity);
+                if (smallest.size() > limit) {
+                    smallest.poll();
+                }
+            }
+        });
+        List<T> page = new ArrayList<>(smallest);
+        page.sort(byId);
+        return page;
+    }
+
+    static void checkLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative: " + limit);
+        }
+    }
+}
+
+class UserRepository implements Repository<User> {
+    private List<User> users = new ArrayList<>();
+    
+    @Override
+    public void save(User entity) {
+        users.add(entity);
+    }
+    
+    @Override
+    public User findById(int id) {
+        return users.stream()
+                   .filter(user -> user.getId() == id)
+                   .findFirst()
+                   .orElse(null);
+    }
+    
+    @Override
+    public List<User> findAll() {
+        return new ArrayList<>(users);
+    }
+    
+    @Override
+    public void delete(User entity) {
+        users.remove(entity);
+    }
+
+    @Override
+    public void saveAll(Collection<? extends User> entities) {
+        users.addAll(entities); // One resize for the whole batch
+    }
+
+    @Override
+    public List<User> findAllById(Collection<Integer> ids) {
+        // One pass over the list instead of one scan per id
+        Map<Integer, User> matches = new HashMap<>();
+        Set<Integer> wanted = new HashSet<>(ids);
+        for (User user : users) {
+            if (wanted.contains(user.getId())) {
+                matches.putIfAbsent(user.getId(), user);
+            }
+        }
+        List<User> found = new ArrayList<>(matches.size());
+        for (int id : ids) {
+            User user = matches.get(id);
+            if (user != null) {
+                found.add(user);
+            }
+        }
+        return found;
+    }
+
+    // Single compaction pass. Like delete, each entity removes only its first
+    // remaining occurrence, so listing a user twice removes two copies.
+    @Override
+    public void deleteAll(Collection<? extends User> entities) {
+        Map<User, Integer> toRemove = new HashMap<>();
+        for (User user : entities) {
+            toRemove.merge(user, 1, Integer::sum);
+        }
+        int kept = 0;
+        for (int i = 0; i < users.size(); i++) {
+            User user = users.get(i);
+            Integer remaining = toRemove.get(user);
+            if (remaining == null) {
+                users.set(kept++, user);
+            } else if (remaining == 1) {
+                toRemove.remove(user);
+            } else {
+                toRemove.put(user, remaining - 1);
+            }
+        }
+        users.subList(kept, users.size()).clear();
+    }
+
+    @Override
+    public Stream<User> stream() {
+        return users.stream(); // ArrayList splits evenly for parallel streams
+    }
+
+    @Override
+    public List<User> findPage(int offset, int limit) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative: " + offset);
+        }
+        Repository.checkLimit(limit);
+        int from = Math.min(offset, users.size());
+        int to = (int) Math.min((long) from + limit, users.size());
+        return new ArrayList<>(users.subList(from, to)); // Copies only the page
+    }
+
+    @Override
+    public List<User> findAfter(int afterId, int limit) {
+        return Repository.keysetPage(stream(), User::getId, afterId, limit); // No id order to seek in
+    }
+}
+
+// Same contract, but backed by a hash index on the primary key.
+// findById, save and delete are O(1) instead of a full list scan.
+class IndexedUserRepository implements Repository<User> {
+    // LinkedHashMap keeps insertion order, so findAll() looks like the list version
+    private Map<Integer, User> usersById;
+    private int presizedFor; // Entries the current map was created for
+    // All ids in ascending order, built by the first findAfter and dropped by any
+    // write that adds or removes an id, so keyset paging costs writes nothing.
+    // Pages that follow each other without such writes reuse it.
+    private int[] sortedIds;
+
+    // Secondary indexes on User.getName(). Names are not unique, so each name
+    // maps to the users that carry it, keyed by id for O(1) removal.
+    private final Map<String, Map<Integer, User>> usersByName = new HashMap<>();
+    // Distinct names in sorted order; a prefix is a contiguous range of this set
+    private final TreeSet<String> sortedNames = new TreeSet<>();
+
+    public IndexedUserRepository() {
+        this(16);
+    }
+
+    public IndexedUserRepository(int expectedSize) {
+        // Presize so loading a known number of users never rehashes
+        this.usersById = new LinkedHashMap<>(tableSizeFor(expectedSize));
+        this.presizedFor = expectedSize;
+    }
+
+    private static int tableSizeFor(int entries) {
+        return (int) (entries / 0.75f) + 1;
+    }
+
+    // Copying a populated map to presize it costs as much as the rehashes it
+    // saves, so only an empty map is swapped for one sized to the first batch
+    private void presizeIfEmpty(int entries) {
+        if (usersById.isEmpty() && entries > presizedFor) {
+            usersById = new LinkedHashMap<>(tableSizeFor(entries));
+            presizedFor = entries;
+        }
+    }
+
+    // A null name is a valid key for the exact-match index, so findByName(null)
+    // finds those users, but no prefix matches it and TreeSet rejects it
+    private void indexName(User user) {
+        Map<Integer, User> sameName = usersByName.get(user.getName());
+        if (sameName == null) {
+            sameName = new LinkedHashMap<>();
+            usersByName.put(user.getName(), sameName);
+            if (user.getName() != null) {
+                sortedNames.add(user.getName());
+            }
+        }
+        sameName.put(user.getId(), user);
+    }
+
+    private void unindexName(User user) {
+        Map<Integer, User> sameName = usersByName.get(user.getName());
+        if (sameName != null) {
+            sameName.remove(user.getId());
+            if (sameName.isEmpty()) {
+                usersByName.remove(user.getName());
+                if (user.getName() != null) {
+                    sortedNames.remove(user.getName());
+                }
+            }
+        }
+    }
+
+    private void put(User user) {
+        User previous = usersById.put(user.getId(), user);
+        if (previous != null) {
+            unindexName(previous); // The old version may have had a different name
+        } else {
+            sortedIds = null;
+        }
+        indexName(user);
+    }
+
+    private void remove(int id) {
+        User removed = usersById.remove(id);
+        if (removed != null) {
+            sortedIds = null;
+            unindexName(removed);
+        }
+    }
+
+    @Override
+    public void save(User entity) {
+        put(entity); // Upsert: replaces an existing user with the same id
+    }
+
+    @Override
+    public User findById(int id) {
+        return usersById.get(id);
+    }
+
+    @Override
+    public List<User> findAll() {
+        return new ArrayList<>(usersById.values());
+    }
+
+    @Override
+    public void delete(User entity) {
+        remove(entity.getId());
+    }
+
+    // A convenience loop over put. Every index is already updated in O(1) or
+    // O(log n) per user; grouping the name-index changes per name was measured
+    // slower, since it allocates a map per name. The only batch-wide saving is
+    // presizing an empty id map for the whole batch.
+    @Override
+    public void saveAll(Collection<? extends User> entities) {
+        presizeIfEmpty(entities.size());
+        for (User user : entities) {
+            put(user);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<? extends User> entities) {
+        for (User user : entities) {
+            remove(user.getId());
+        }
+    }
+
+    @Override
+    public Stream<User> stream() {
+        return usersById.values().stream();
+    }
+
+    // O(log n + limit) with a current id order; rebuilding it after a write that
+    // changed the ids sorts a plain int[] of the keys, 4 bytes per user
+    @Override
+    public List<User> findAfter(int afterId, int limit) {
+        Repository.checkLimit(limit);
+        int[] ids = sortedIds;
+        if (ids == null) {
+            ids = new int[usersById.size()];
+            int i = 0;
+            for (int id : usersById.keySet()) {
+                ids[i++] = id;
+            }
+            Arrays.sort(ids);
+            sortedIds = ids;
+        }
+        int from = Arrays.binarySearch(ids, afterId);
+        from = from >= 0 ? from + 1 : -from - 1;
+        int to = (int) Math.min((long) from + limit, ids.length);
+        List<User> page = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            page.add(usersById.get(ids[i]));
+        }
+        return page;
+    }
+
+    // Exact-match lookup through the name index, no scan of all users
+    public List<User> findByName(String name) {
+        Map<Integer, User> sameName = usersByName.get(name);
+        return sameName == null ? new ArrayList<>() : new ArrayList<>(sameName.values());
+    }
+
+    public List<User> findByNamePrefix(String prefix) {
+        return findByNamePrefix(prefix, Integer.MAX_VALUE);
+    }
+
+    // Type-ahead lookup: walks only the sorted names that start with the prefix
+    // and stops as soon as limit users have been collected
+    public List<User> findByNamePrefix(String prefix, int limit) {
+        List<User> found = new ArrayList<>();
+        for (String name : sortedNames.tailSet(prefix, true)) {
+            if (!name.startsWith(prefix) || found.size() >= limit) {
+                break;
+            }
+            for (User user : usersByName.get(name).values()) {
+                if (found.size() >= limit) break;
+                found.add(user);
+            }
+        }
+        return found;
+    }
+
+    public int size() {
+        return usersById.size();
+    }
+}
+
+// Thread-safe generic repository for many concurrent request threads.
+// Reads go straight to a ConcurrentHashMap and never block. Writes take one of
+// a fixed set of striped locks, so writers to different ids proceed in parallel.
+class ConcurrentRepository<T> implements Repository<T> {
+    private static final int STRIPES = 64; // Power of two, so (id & mask) picks a stripe
+    private static final int SNAPSHOT_RETRIES = 4;
+
+    private final ConcurrentHashMap<Integer, T> entities = new ConcurrentHashMap<>();
+    // Id-ordered copy for keyset paging; both maps change under the same stripe lock
+    private final ConcurrentSkipListMap<Integer, T> inIdOrder = new ConcurrentSkipListMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final ToIntFunction<T> idOf;
+
+    // Writers bump "started" before and "finished" after each mutation.
+    // A snapshot is consistent if no write started or finished while it was copied.
+    private final AtomicLong writesStarted = new AtomicLong();
+    private final AtomicLong writesFinished = new AtomicLong();
+
+    public ConcurrentRepository(ToIntFunction<T> idOf) {
+        this.idOf = idOf;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    private static int stripeOf(int id) {
+        int h = id * 0x9E3779B9; // Spread sequential ids across stripes
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private ReentrantLock lockFor(int id) {
+        return locks[stripeOf(id)];
+    }
+
+    // Callers hold the id's stripe lock
+    private void store(int id, T entity) {
+        entities.put(id, entity);
+        inIdOrder.put(id, entity);
+    }
+
+    private void evict(int id) {
+        entities.remove(id);
+        inIdOrder.remove(id);
+    }
+
+    // Groups a batch by stripe so each lock is taken once per batch, not once per entity
+    private List<List<T>> byStripe(Collection<? extends T> batch) {
+        List<List<T>> buckets = new ArrayList<>(STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (T entity : batch) {
+            buckets.get(stripeOf(idOf.applyAsInt(entity))).add(entity);
+        }
+        return buckets;
+    }
+
+    @Override
+    public void save(T entity) {
+        int id = idOf.applyAsInt(entity);
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try {
+            writesStarted.incrementAndGet();
+            store(id, entity);
+        } finally {
+            writesFinished.incrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T findById(int id) {
+        return entities.get(id); // Lock-free read
+    }
+
+    @Override
+    public List<T> findAll() {
+        // Optimistic copy: writers keep running, and we retry if one overlapped us
+        for (int attempt = 0; attempt < SNAPSHOT_RETRIES; attempt++) {
+            long before = writesFinished.get();
+            if (writesStarted.get() != before) {
+                Thread.onSpinWait(); // A write is in progress, try again shortly
+                continue;
+            }
+            List<T> copy = new ArrayList<>(entities.values());
+            if (writesStarted.get() == before) {
+                return copy;
+            }
+        }
+        // Heavy write traffic: briefly hold every stripe (in order, so no deadlock)
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            return new ArrayList<>(entities.values());
+        } finally {
+            for (int i = locks.length - 1; i >= 0; i--) {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    @Override
+    public void delete(T entity) {
+        int id = idOf.applyAsInt(entity);
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try {
+            writesStarted.incrementAndGet();
+            evict(id);
+        } finally {
+            writesFinished.incrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<? extends T> batch) {
+        applyBatch(batch, entity -> store(idOf.applyAsInt(entity), entity));
+    }
+
+    @Override
+    public List<T> findAllById(Collection<Integer> ids) {
+        // Straight map reads: no locks, and no virtual findById call per id
+        List<T> found = new ArrayList<>(ids.size());
+        for (int id : ids) {
+            T entity = entities.get(id);
+            if (entity != null) {
+                found.add(entity);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void deleteAll(Collection<? extends T> batch) {
+        applyBatch(batch, entity -> evict(idOf.applyAsInt(entity)));
+    }
+
+    // Takes every stripe the batch touches, in stripe order, before changing
+    // anything. findAll()'s fallback holds all stripes, so it sees a batch either
+    // completely or not at all; the ordering keeps the two deadlock-free.
+    private void applyBatch(Collection<? extends T> batch, Consumer<T> change) {
+        List<List<T>> buckets = byStripe(batch);
+        int locked = 0;
+        try {
+            for (; locked < STRIPES; locked++) {
+                if (!buckets.get(locked).isEmpty()) {
+                    locks[locked].lock();
+                }
+            }
+            writesStarted.incrementAndGet(); // The whole batch counts as one write for snapshots
+            try {
+                for (List<T> bucket : buckets) {
+                    bucket.forEach(change);
+                }
+            } finally {
+                writesFinished.incrementAndGet();
+            }
+        } finally {
+            for (int stripe = locked - 1; stripe >= 0; stripe--) {
+                if (!buckets.get(stripe).isEmpty()) {
+                    locks[stripe].unlock();
+                }
+            }
+        }
+    }
+
+    // Weakly consistent view: it never blocks writers and never copies, but unlike
+    // findAll() it may or may not reflect writes that happen while it is consumed
+    @Override
+    public Stream<T> stream() {
+        return entities.values().stream();
+    }
+
+    @Override
+    public List<T> findAfter(int afterId, int limit) {
+        return Repository.keysetPage(inIdOrder, afterId, limit);
+    }
+
+    public int size() {
+        return entities.size();
+    }
+}
+
+// File-backed repository. Users are stored as fixed-size records in a
+// memory-mapped file, so a restart just maps the file and rebuilds the id index
+// with one sequential scan; the user data itself is never copied onto the heap.
+//
+// The file is an append-only log: every save appends a live record and every
+// delete appends a tombstone. The index points each id at its latest record.
+// Not thread-safe; wrap it or use one instance per thread.
+class MappedUserRepository implements Repository<User>, AutoCloseable {
+    private static final int MAGIC = 0x55535231; // "USR1"
+    private static final int HEADER_SIZE = 16;   // magic, version, record count, padding
+    private static final int COUNT_OFFSET = 8;
+
+    // Record layout: status (1 byte), id (4), name length (2), name bytes (UTF-8)
+    static final int RECORD_SIZE = 64;
+    static final int MAX_NAME_BYTES = RECORD_SIZE - 7;
+    private static final byte LIVE = 1;
+    private static final byte TOMBSTONE = 0;
+
+    private static final int INITIAL_RECORDS = 1024;
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int recordCount;                                  // Records appended so far, live or not
+    // id -> latest live record; sorted, so keyset pages seek instead of scanning the file
+    private final NavigableMap<Integer, Integer> slotById = new TreeMap<>();
+
+    public MappedUserRepository(Path file) {
+        this.file = file;
+        try {
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open " + file, e);
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean fresh = channel.size() < HEADER_SIZE;
+        long size = Math.max(channel.size(), HEADER_SIZE + (long) INITIAL_RECORDS * RECORD_SIZE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        if (fresh) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, 1);
+            buffer.putInt(COUNT_OFFSET, 0);
+        } else if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a user repository file");
+        }
+        recordCount = buffer.getInt(COUNT_OFFSET);
+        rebuildIndex();
+    }
+
+    // Replays the log in order; later records win over earlier ones for the same id
+    private void rebuildIndex() {
+        slotById.clear();
+        for (int slot = 0; slot < recordCount; slot++) {
+            int offset = offsetOf(slot);
+            int id = buffer.getInt(offset + 1);
+            if (buffer.get(offset) == LIVE) {
+                slotById.put(id, slot);
+            } else {
+                slotById.remove(id);
+            }
+        }
+    }
+
+    private static int offsetOf(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private int append(byte status, int id, byte[] name) {
+        ensureRoom(recordCount + 1);
+        int slot = recordCount;
+        int offset = offsetOf(slot);
+        buffer.put(offset, status);
+        buffer.putInt(offset + 1, id);
+        buffer.putShort(offset + 5, (short) name.length);
+        buffer.put(offset + 7, name);
+        // Publish the record only after its bytes are in place
+        recordCount++;
+        buffer.putInt(COUNT_OFFSET, recordCount);
+        return slot;
+    }
+
+    // Grows the file by doubling and remaps it
+    private void ensureRoom(int records) {
+        long needed = HEADER_SIZE + (long) records * RECORD_SIZE;
+        if (needed <= buffer.capacity()) {
+            return;
+        }
+        long newSize = Math.max(needed, 2L * buffer.capacity());
+        if (newSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Repository file is limited to 2 GB");
+        }
+        try {
+            buffer.force();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private User read(int slot) {
+        int offset = offsetOf(slot);
+        int id = buffer.getInt(offset + 1);
+        byte[] name = new byte[buffer.getShort(offset + 5)];
+        buffer.get(offset + 7, name);
+        return new User(id, new String(name, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void save(User entity) {
+        byte[] name = entity.getName().getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Name longer than " + MAX_NAME_BYTES + " bytes: " + entity.getName());
+        }
+        slotById.put(entity.getId(), append(LIVE, entity.getId(), name));
+    }
+
+    @Override
+    public User findById(int id) {
+        Integer slot = slotById.get(id);
+        return slot == null ? null : read(slot);
+    }
+
+    // True if the record in this slot is the current version of its user
+    private boolean isLatest(int slot) {
+        int offset = offsetOf(slot);
+        if (buffer.get(offset) != LIVE) {
+            return false;
+        }
+        Integer latest = slotById.get(buffer.getInt(offset + 1));
+        return latest != null && latest == slot;
+    }
+
+    @Override
+    public List<User> findAll() {
+        // Walk the log in file order so the result is stable across restarts
+        List<User> users = new ArrayList<>(slotById.size());
+        for (int slot = 0; slot < recordCount; slot++) {
+            if (isLatest(slot)) {
+                users.add(read(slot));
+            }
+        }
+        return users;
+    }
+
+    // Decodes users straight from the mapped file as the stream pulls them
+    @Override
+    public Stream<User> stream() {
+        return StreamSupport.stream(new SlotSpliterator(0, recordCount), false);
+    }
+
+    @Override
+    public List<User> findAfter(int afterId, int limit) {
+        Repository.checkLimit(limit);
+        List<User> page = new ArrayList<>(Math.min(limit, 1024));
+        for (int slot : slotById.tailMap(afterId, false).values()) {
+            if (page.size() >= limit) break;
+            page.add(read(slot));
+        }
+        return page;
+    }
+
+    // Splits a range of record slots in half, so parallel streams divide the file evenly
+    private class SlotSpliterator implements Spliterator<User> {
+        private static final int MIN_SPLIT = 1024;
+        private int next;
+        private final int end;
+
+        SlotSpliterator(int from, int end) {
+            this.next = from;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super User> action) {
+            while (next < end) {
+                int slot = next++;
+                if (isLatest(slot)) {
+                    action.accept(read(slot));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<User> trySplit() {
+            int remaining = end - next;
+            if (remaining < MIN_SPLIT) {
+                return null;
+            }
+            int mid = next + remaining / 2;
+            SlotSpliterator prefix = new SlotSpliterator(next, mid);
+            next = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - next; // Upper bound: some slots hold old versions or tombstones
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+
+    @Override
+    public void delete(User entity) {
+        if (slotById.remove(entity.getId()) != null) {
+            append(TOMBSTONE, entity.getId(), new byte[0]);
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<? extends User> entities) {
+        ensureRoom(recordCount + entities.size()); // One remap for the whole batch
+        for (User user : entities) {
+            save(user);
+        }
+    }
+
+    public int size() {
+        return slotById.size();
+    }
+
+    // Share of the log taken up by overwritten records and tombstones
+    public double garbageRatio() {
+        return recordCount == 0 ? 0 : 1.0 - (double) slotById.size() / recordCount;
+    }
+
+    // Rewrites only the live records into a fresh file and swaps it in
+    public void compact() {
+        Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+        try {
+            Files.deleteIfExists(tmp);
+            try (MappedUserRepository fresh = new MappedUserRepository(tmp)) {
+                fresh.saveAll(findAll());
+            }
+            close();
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Compaction of " + file + " failed", e);
+        }
+    }
+
+    // Forces the mapped pages to disk
+    public void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() {
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// In-memory repository made crash-safe with a write-ahead log (WAL).
+//
+// Every save and delete is applied in memory and appended to the log, and the
+// call returns only after the log has been fsync'd. A single committer thread
+// writes whatever has piled up since its last fsync in one go ("group commit"),
+// so many concurrent mutations share one fsync.
+//
+// A mutation only reaches the in-memory state after its records are on disk:
+// the committer applies each batch's changes, in log order, right after the
+// fsync, and readers never see a change that a crash could still undo.
+//
+// A background snapshotter periodically writes the whole state to
+// snapshot.dat and starts a new log segment, so older segments can be deleted.
+// On open, the latest snapshot is loaded and the newer segments are replayed.
+class DurableUserRepository implements Repository<User>, AutoCloseable {
+    private static final int SNAPSHOT_MAGIC = 0x534E4150; // "SNAP"
+    private static final byte OP_SAVE = 1;
+    private static final byte OP_DELETE = 2;
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+
+    private final Path dir;
+    private final ConcurrentRepository<User> memory = new ConcurrentRepository<>(User::getId);
+
+    // Guards the log state below; pending records and changes are queued together
+    // under it, so memory is changed in exactly the order the log was written
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasWork = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private List<Runnable> pendingChanges = new ArrayList<>(); // Applied once durable
+    private long enqueuedSeq;  // Last mutation added to the log
+    private long takenSeq;     // Last mutation the committer has started writing
+    private long durableSeq;   // Last mutation on disk and applied in memory
+    private IOException failure;
+    private boolean closed;
+    private FileChannel wal;
+    private long walSegment;
+
+    private final Thread committer;
+    private final ScheduledExecutorService snapshotter;
+    // Single-flight: scheduled and explicit snapshots never overlap
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    private long recoveredRecords;
+    private long recoveryNanos;
+
+    public DurableUserRepository(Path dir) {
+        this(dir, 60_000);
+    }
+
+    public DurableUserRepository(Path dir, long snapshotIntervalMillis) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            long start = System.nanoTime();
+            long lastSegment = recover();
+            recoveryNanos = System.nanoTime() - start;
+            walSegment = lastSegment + 1; // Never append after a possibly torn tail
+            wal = openSegment(walSegment);
+            syncDirectory();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open repository in " + dir, e);
+        }
+
+        committer = new Thread(this::commitLoop, "wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "wal-snapshotter");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotter.scheduleWithFixedDelay(this::snapshotQuietly,
+                snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // ---- Recovery ----
+
+    private Path snapshotFile() {
+        return dir.resolve("snapshot.dat");
+    }
+
+    private Path segmentFile(long segment) {
+        return dir.resolve(String.format("wal-%012d.log", segment));
+    }
+
+    private static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(4, name.length() - 4));
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        segments.sort(Comparator.comparingLong(DurableUserRepository::segmentNumber));
+        return segments;
+    }
+
+    // Loads the snapshot, replays newer segments and returns the highest segment seen
+    private long recover() throws IOException {
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(dir, "snapshot-*.tmp")) {
+            for (Path leftover : leftovers) {
+                Files.delete(leftover); // A snapshot that crashed before its rename
+            }
+        }
+        long firstSegment = 0;
+        if (Files.exists(snapshotFile())) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(snapshotFile())))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException(snapshotFile() + " is not a snapshot file");
+                }
+                firstSegment = in.readLong();
+                int count = in.readInt();
+                List<User> users = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    users.add(new User(in.readInt(), in.readUTF()));
+                }
+                memory.saveAll(users);
+            }
+        }
+
+        long lastSegment = firstSegment;
+        for (Path segment : segments()) {
+            long number = segmentNumber(segment);
+            if (number < firstSegment) {
+                Files.delete(segment); // Already covered by the snapshot
+                continue;
+            }
+            recoveredRecords += replay(segment);
+            lastSegment = number;
+        }
+        return lastSegment;
+    }
+
+    // Applies records until the end of the file or the first torn/corrupt record
+    private long replay(Path segment) throws IOException {
+        long applied = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(segment), 1 << 16))) {
+            while (true) {
+                byte[] body;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_BYTES) break;
+                    body = new byte[length];
+                    in.readFully(body);
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break; // Crash in the middle of a write: drop the unacknowledged tail
+                }
+                if (checksum != crcOf(body)) break;
+                apply(new DataInputStream(new ByteArrayInputStream(body)));
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    private void apply(DataInputStream record) throws IOException {
+        byte op = record.readByte();
+        int id = record.readInt();
+        if (op == OP_SAVE) {
+            memory.save(new User(id, record.readUTF()));
+        } else {
+            memory.delete(new User(id, null));
+        }
+    }
+
+    public long recoveredRecords() {
+        return recoveredRecords;
+    }
+
+    public String recoveryReport() {
+        double seconds = recoveryNanos / 1e9;
+        return String.format("recovered %d users, replayed %d log records in %.1f ms (%.0f records/s)",
+                memory.size(), recoveredRecords, recoveryNanos / 1e6,
+                seconds == 0 ? 0 : recoveredRecords / seconds);
+    }
+
+    // ---- Write path ----
+
+    private FileChannel openSegment(long segment) throws IOException {
+        return FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // fsyncs the directory, which makes file creations and renames in it durable.
+    // Windows cannot open a directory as a channel and has no such step.
+    private void syncDirectory() throws IOException {
+        if (System.getProperty("os.name").startsWith("Windows")) {
+            return;
+        }
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    private static int crcOf(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    // Framed record: length, body (op, id, name), CRC32 of the body
+    private static void encode(DataOutputStream out, byte op, User user) {
+        try {
+            ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(32);
+            DataOutputStream body = new DataOutputStream(bodyBytes);
+            body.writeByte(op);
+            body.writeInt(user.getId());
+            if (op == OP_SAVE) {
+                body.writeUTF(user.getName());
+            }
+            byte[] bytes = bodyBytes.toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeInt(crcOf(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Cannot happen for in-memory streams
+        }
+    }
+
+    // Queues a batch's log records and waits until the committer has made them
+    // durable and applied the batch in memory
+    private void mutate(byte op, Collection<? extends User> users) {
+        List<User> batch = new ArrayList<>(users); // The caller may reuse its collection
+        ByteArrayOutputStream records = new ByteArrayOutputStream(batch.size() * 32);
+        DataOutputStream out = new DataOutputStream(records);
+        for (User user : batch) {
+            encode(out, op, user);
+        }
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Repository is closed");
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+            records.writeTo(pending);
+            pendingChanges.add(op == OP_SAVE ? () -> memory.saveAll(batch) : () -> memory.deleteAll(batch));
+            long seq = ++enqueuedSeq;
+            hasWork.signal();
+            while (durableSeq < seq && failure == null) {
+                durable.awaitUninterruptibly();
+            }
+            if (durableSeq < seq) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            byte[] batch;
+            List<Runnable> changes;
+            long seq;
+            FileChannel channel;
+            lock.lock();
+            try {
+                while (pending.size() == 0 && !closed) {
+                    hasWork.awaitUninterruptibly();
+                }
+                if (pending.size() == 0) {
+                    return; // Closed and fully flushed
+                }
+                batch = pending.toByteArray();
+                pending = new ByteArrayOutputStream(Math.max(32, batch.length));
+                changes = pendingChanges;
+                pendingChanges = new ArrayList<>();
+                seq = enqueuedSeq;
+                takenSeq = seq;
+                channel = wal;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(batch);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(false); // One fsync for every mutation in this batch
+            } catch (IOException e) {
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error; // Nothing of this batch reaches memory
+                } else {
+                    for (Runnable change : changes) {
+                        change.run();
+                    }
+                    durableSeq = seq;
+                }
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (error != null) {
+                return;
+            }
+        }
+    }
+
+    // ---- Snapshots ----
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Snapshot failed, keeping the log: " + e.getMessage());
+        }
+    }
+
+    // Writes the current state and switches to a new log segment. Waits for the
+    // batch the committer is writing, so the snapshot covers everything in the old
+    // segments; records still queued at the switch go to the new segment.
+    public void snapshot() throws IOException {
+        snapshotLock.lock();
+        try {
+            writeSnapshot();
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        long newSegment = walSegment + 1; // Only snapshots advance it, one at a time
+        FileChannel newWal = openSegment(newSegment);
+        syncDirectory(); // Acks will depend on records in the new file
+        FileChannel oldWal;
+        lock.lock();
+        try {
+            while (durableSeq < takenSeq && failure == null) {
+                durable.awaitUninterruptibly();
+            }
+            if (closed || failure != null) {
+                newWal.close(); // Left empty; replaying it later is a no-op
+                return;
+            }
+            // Only the switch happens under the lock, so writers and the committer
+            // never wait for the copy below
+            oldWal = wal;
+            wal = newWal;
+            walSegment = newSegment;
+        } finally {
+            lock.unlock();
+        }
+        oldWal.close(); // No batch is in flight to it any more
+
+        // Taken after the switch, so it holds everything in the old segments and
+        // maybe some changes from the new one. Replaying the new segment over those
+        // is harmless: saves and deletes by id give the same result applied twice.
+        List<User> state = memory.findAll();
+
+        // A fresh name per attempt, so a failed attempt never clobbers another's file
+        Path tmp = Files.createTempFile(dir, "snapshot-", ".tmp");
+        try {
+            try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(newSegment);
+                out.writeInt(state.size());
+                for (User user : state) {
+                    out.writeInt(user.getId());
+                    out.writeUTF(user.getName());
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(tmp, snapshotFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(); // Otherwise a crash can undo the rename after the old segments are gone
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        for (Path segment : segments()) {
+            if (segmentNumber(segment) < newSegment) {
+                Files.delete(segment);
+            }
+        }
+    }
+
+    // ---- Repository ----
+
+    @Override
+    public void save(User entity) {
+        mutate(OP_SAVE, Collections.singletonList(entity));
+    }
+
+    @Override
+    public User findById(int id) {
+        return memory.findById(id);
+    }
+
+    @Override
+    public List<User> findAll() {
+        return memory.findAll();
+    }
+
+    @Override
+    public Stream<User> stream() {
+        return memory.stream();
+    }
+
+    @Override
+    public List<User> findAfter(int afterId, int limit) {
+        return memory.findAfter(afterId, limit);
+    }
+
+    @Override
+    public void delete(User entity) {
+        mutate(OP_DELETE, Collections.singletonList(entity));
+    }
+
+    @Override
+    public void saveAll(Collection<? extends User> entities) {
+        mutate(OP_SAVE, entities);
+    }
+
+    @Override
+    public void deleteAll(Collection<? extends User> entities) {
+        mutate(OP_DELETE, entities);
+    }
+
+    public int size() {
+        return memory.size();
+    }
+
+    @Override
+    public void close() {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+            lock.lock();
+            try {
+                closed = true;
+                hasWork.signal();
+            } finally {
+                lock.unlock();
+            }
+            committer.join();
+            wal.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// Size-bounded read-through cache that can wrap any Repository<T>, e.g. a slow
+// JDBC/JPA-backed one. Admission is TinyLFU-style: when the cache is full, a new
+// entry only gets in if it has been requested more often than the least recently
+// used entry it would replace. A one-off scan therefore cannot flush the hot set
+// the way it would flush a plain LRU.
+//
+// The cache is split into lock-striped segments by id, each with its own LRU
+// order and sketch, so hits on different ids rarely wait for each other.
+class CachingRepository<T> implements Repository<T> {
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 64; // Keeps per-segment LRU/LFU decisions meaningful
+
+    private final Repository<T> backend;
+    private final ToIntFunction<T> idOf;
+    private final int maximumSize;
+    private final List<Segment<T>> segments;
+
+    // Concurrent misses for the same id wait on one backend load
+    private final ConcurrentHashMap<Integer, CompletableFuture<T>> loads = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder backendLoads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public CachingRepository(Repository<T> backend, ToIntFunction<T> idOf, int maximumSize) {
+        this.backend = backend;
+        this.idOf = idOf;
+        this.maximumSize = maximumSize;
+        int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, maximumSize / MIN_SEGMENT_SIZE)));
+        this.segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // Spread the remainder so the segment sizes add up to maximumSize
+            segments.add(new Segment<>(maximumSize / count + (i < maximumSize % count ? 1 : 0)));
+        }
+    }
+
+    // One stripe of the cache. Access-ordered, so the first entry is always the
+    // LRU eviction candidate. The map and the sketch are guarded by the segment.
+    private static final class Segment<T> {
+        final LinkedHashMap<Integer, T> cache = new LinkedHashMap<>(16, 0.75f, true);
+        final FrequencySketch sketch;
+        final int maximumSize;
+
+        Segment(int maximumSize) {
+            this.maximumSize = maximumSize;
+            this.sketch = new FrequencySketch(maximumSize);
+        }
+    }
+
+    private Segment<T> segmentFor(int id) {
+        int h = id * 0x9E3779B9;
+        return segments.get((h ^ (h >>> 16)) & (segments.size() - 1));
+    }
+
+    @Override
+    public T findById(int id) {
+        Segment<T> segment = segmentFor(id);
+        synchronized (segment) {
+            segment.sketch.increment(id);
+            T cached = segment.cache.get(id);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+        }
+        misses.increment();
+
+        CompletableFuture<T> load = new CompletableFuture<>();
+        CompletableFuture<T> inFlight = loads.putIfAbsent(id, load);
+        if (inFlight != null) {
+            try {
+                return inFlight.join(); // Another thread is already loading this id
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw e;
+            }
+        }
+
+        T loaded;
+        try {
+            backendLoads.increment();
+            loaded = backend.findById(id);
+            synchronized (segment) {
+                // If a save or delete invalidated the id meanwhile, the value may be stale
+                if (loads.remove(id, load) && loaded != null) {
+                    admit(segment, id, loaded);
+                }
+            }
+        } catch (Throwable t) {
+            load.completeExceptionally(t); // Waiters fail too instead of hanging
+            throw t;
+        } finally {
+            loads.remove(id, load); // Whatever happened, the next miss starts a fresh load
+        }
+        load.complete(loaded);
+        return loaded;
+    }
+
+    // Caller holds the segment lock
+    private void admit(Segment<T> segment, int id, T value) {
+        LinkedHashMap<Integer, T> cache = segment.cache;
+        if (cache.size() < segment.maximumSize || cache.containsKey(id)) {
+            cache.put(id, value);
+            return;
+        }
+        Map.Entry<Integer, T> victim = cache.entrySet().iterator().next();
+        if (segment.sketch.frequency(id) > segment.sketch.frequency(victim.getKey())) {
+            cache.remove(victim.getKey());
+            cache.put(id, value);
+            evictions.increment();
+        } else {
+            rejections.increment(); // Colder than what it would replace
+        }
+    }
+
+    private void invalidate(int id) {
+        Segment<T> segment = segmentFor(id);
+        synchronized (segment) {
+            loads.remove(id);
+            segment.cache.remove(id);
+        }
+    }
+
+    @Override
+    public void save(T entity) {
+        backend.save(entity);
+        invalidate(idOf.applyAsInt(entity));
+    }
+
+    @Override
+    public void delete(T entity) {
+        backend.delete(entity);
+        invalidate(idOf.applyAsInt(entity));
+    }
+
+    @Override
+    public void saveAll(Collection<? extends T> entities) {
+        backend.saveAll(entities);
+        for (T entity : entities) {
+            invalidate(idOf.applyAsInt(entity));
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<? extends T> entities) {
+        backend.deleteAll(entities);
+        for (T entity : entities) {
+            invalidate(idOf.applyAsInt(entity));
+        }
+    }
+
+    // Scans bypass the cache on purpose, so they neither hit nor pollute it
+    @Override
+    public List<T> findAll() {
+        return backend.findAll();
+    }
+
+    @Override
+    public Stream<T> stream() {
+        return backend.stream();
+    }
+
+    @Override
+    public List<T> findPage(int offset, int limit) {
+        return backend.findPage(offset, limit);
+    }
+
+    @Override
+    public List<T> findAfter(int afterId, int limit) {
+        return backend.findAfter(afterId, limit);
+    }
+
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public double missRate() {
+        long total = hits.sum() + misses.sum();
+        return total == 0 ? 0 : (double) misses.sum() / total;
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    public String stats() {
+        int size = 0;
+        for (Segment<T> segment : segments) {
+            synchronized (segment) {
+                size += segment.cache.size();
+            }
+        }
+        return String.format("size=%d/%d hits=%d misses=%d hitRate=%.3f loads=%d evictions=%d rejected=%d",
+                size, maximumSize, hits.sum(), misses.sum(), hitRate(),
+                backendLoads.sum(), evictions.sum(), rejections.sum());
+    }
+
+    // Count-min sketch of recent access frequencies: 4 counters per key, capped
+    // at 15, read as their minimum. All counters are halved periodically so old
+    // popularity fades and the sketch keeps tracking the current hot set.
+    static class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97CB3127, 0x84222325, 0xCBF29CE4, 0x2B3B5C41};
+
+        private final int[] counters;
+        private final int mask;
+        private final int resetAfter;
+        private int additions;
+
+        FrequencySketch(int maximumSize) {
+            int width = Integer.highestOneBit(Math.max(64, maximumSize) * 2 - 1); // Power of two >= size
+            this.counters = new int[width * SEEDS.length];
+            this.mask = width - 1;
+            this.resetAfter = width * 10;
+        }
+
+        private int index(int key, int row) {
+            int h = (key ^ SEEDS[row]) * 0x9E3779B9;
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+
+        void increment(int key) {
+            for (int row = 0; row < SEEDS.length; row++) {
+                int i = index(key, row);
+                if (counters[i] < MAX_COUNT) {
+                    counters[i]++;
+                }
+            }
+            if (++additions >= resetAfter) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int key) {
+            int min = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                min = Math.min(min, counters[index(key, row)]);
+            }
+            return min;
+        }
+    }
+}
+
+// Decorator that measures how long each repository operation takes.
+// Every call is counted and tracked in the in-flight gauge with LongAdders, which
+// spread concurrent updates over several cells instead of one contended counter.
+// Only a random one in sampleEvery single-entity calls is timed: its two
+// System.nanoTime() reads, histogram update and peak in-flight check are the
+// expensive part, and on cache-missing lookups the clock reads also stop the CPU
+// from overlapping consecutive calls. InstrumentationOverhead measures sampled
+// and full timing.
+class InstrumentedRepository<T> implements Repository<T>, AutoCloseable {
+    // Single-entity calls are cheap and frequent, so they are sampled; bulk, scan
+    // and page calls cost far more than the two clock reads and are always timed
+    enum Operation {
+        SAVE(true), FIND_BY_ID(true), FIND_ALL(false), DELETE(true), SAVE_ALL(false),
+        FIND_ALL_BY_ID(false), DELETE_ALL(false), FIND_PAGE(false), FIND_AFTER(false);
+
+        final boolean sampled;
+
+        Operation(boolean sampled) {
+            this.sampled = sampled;
+        }
+    }
+
+    private static final int DEFAULT_SAMPLE_EVERY = 16;
+    private static final long NOT_TIMED = Long.MIN_VALUE; // begin() result for an unsampled call
+
+    private final Repository<T> backend;
+    private final int sampleMask;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+    // Calls started, and calls finished per operation. Their difference is the
+    // in-flight count, so a call costs two increments instead of three.
+    private final LongAdder started = new LongAdder();
+    private final LongAdder[] finished = new LongAdder[Operation.values().length];
+    private final AtomicInteger peakInFlight = new AtomicInteger(); // Only timed calls update it
+    private ScheduledExecutorService reporter;
+
+    public InstrumentedRepository(Repository<T> backend) {
+        this(backend, DEFAULT_SAMPLE_EVERY);
+    }
+
+    // sampleEvery is a power of two; 1 times every call
+    public InstrumentedRepository(Repository<T> backend, int sampleEvery) {
+        if (sampleEvery <= 0 || Integer.bitCount(sampleEvery) != 1) {
+            throw new IllegalArgumentException("sampleEvery must be a power of two: " + sampleEvery);
+        }
+        this.backend = backend;
+        this.sampleMask = sampleEvery - 1;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            finished[i] = new LongAdder();
+        }
+    }
+
+    private long begin(Operation op) {
+        started.increment();
+        if (op.sampled && (ThreadLocalRandom.current().nextInt() & sampleMask) != 0) {
+            return NOT_TIMED;
+        }
+        int now = inFlight();
+        if (now > peakInFlight.get()) {
+            peakInFlight.accumulateAndGet(now, Math::max);
+        }
+        return System.nanoTime();
+    }
+
+    private void end(Operation op, long start) {
+        if (start != NOT_TIMED) {
+            histograms[op.ordinal()].record(System.nanoTime() - start);
+        }
+        finished[op.ordinal()].increment();
+    }
+
+    @Override
+    public void save(T entity) {
+        long start = begin(Operation.SAVE);
+        try {
+            backend.save(entity);
+        } finally {
+            end(Operation.SAVE, start);
+        }
+    }
+
+    @Override
+    public T findById(int id) {
+        long start = begin(Operation.FIND_BY_ID);
+        try {
+            return backend.findById(id);
+        } finally {
+            end(Operation.FIND_BY_ID, start);
+        }
+    }
+
+    @Override
+    public List<T> findAll() {
+        long start = begin(Operation.FIND_ALL);
+        try {
+            return backend.findAll();
+        } finally {
+            end(Operation.FIND_ALL, start);
+        }
+    }
+
+    @Override
+    public void delete(T entity) {
+        long start = begin(Operation.DELETE);
+        try {
+            backend.delete(entity);
+        } finally {
+            end(Operation.DELETE, start);
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<? extends T> entities) {
+        long start = begin(Operation.SAVE_ALL);
+        try {
+            backend.saveAll(entities);
+        } finally {
+            end(Operation.SAVE_ALL, start);
+        }
+    }
+
+    @Override
+    public List<T> findAllById(Collection<Integer> ids) {
+        long start = begin(Operation.FIND_ALL_BY_ID);
+        try {
+            return backend.findAllById(ids);
+        } finally {
+            end(Operation.FIND_ALL_BY_ID, start);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<? extends T> entities) {
+        long start = begin(Operation.DELETE_ALL);
+        try {
+            backend.deleteAll(entities);
+        } finally {
+            end(Operation.DELETE_ALL, start);
+        }
+    }
+
+    // Not timed: the work happens lazily when the caller consumes the stream
+    @Override
+    public Stream<T> stream() {
+        return backend.stream();
+    }
+
+    @Override
+    public List<T> findPage(int offset, int limit) {
+        long start = begin(Operation.FIND_PAGE);
+        try {
+            return backend.findPage(offset, limit);
+        } finally {
+            end(Operation.FIND_PAGE, start);
+        }
+    }
+
+    @Override
+    public List<T> findAfter(int afterId, int limit) {
+        long start = begin(Operation.FIND_AFTER);
+        try {
+            return backend.findAfter(afterId, limit);
+        } finally {
+            end(Operation.FIND_AFTER, start);
+        }
+    }
+
+    // ---- Pull API ----
+
+    // Latencies of the sampled calls only; calls(op) counts them all
+    public LatencyHistogram histogram(Operation op) {
+        return histograms[op.ordinal()];
+    }
+
+    public long calls(Operation op) {
+        return finished[op.ordinal()].sum();
+    }
+
+    // The sums are not an atomic snapshot. Reading the finished counts first can
+    // only over-count calls that start meanwhile, so the result is never negative,
+    // and the peak is the highest concurrency a sampled call saw.
+    public int inFlight() {
+        long done = 0;
+        for (LongAdder count : finished) {
+            done += count.sum();
+        }
+        return (int) (started.sum() - done);
+    }
+
+    public int peakInFlight() {
+        return peakInFlight.get();
+    }
+
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("in-flight=%d peak=%d%n", inFlight(), peakInFlight()));
+        for (Operation op : Operation.values()) {
+            LatencyHistogram h = histogram(op);
+            long count = calls(op);
+            if (count > 0) {
+                out.append(String.format("%-15s count=%-9d timed=%-9d p50=%-9s p99=%-9s p999=%-9s max=%s%n",
+                        op, count, h.count(), formatNanos(h.percentile(50)), formatNanos(h.percentile(99)),
+                        formatNanos(h.percentile(99.9)), formatNanos(h.max())));
+            }
+        }
+        return out.toString();
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 10_000) return nanos + "ns";
+        if (nanos < 10_000_000) return (nanos / 1_000) + "us";
+        return (nanos / 1_000_000) + "ms";
+    }
+
+    // ---- Periodic text dump ----
+
+    public synchronized void startReporting(long period, TimeUnit unit, PrintStream out) {
+        stopReporting();
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "repository-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> out.print(report()), period, period, unit);
+    }
+
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        stopReporting();
+    }
+
+    // Log-linear latency histogram in the spirit of HdrHistogram: values below 16ns
+    // get their own bucket, above that every power of two is split into 16 buckets,
+    // so any recorded value is reported within about 6% using a fixed 960 counters.
+    static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 16;
+        private static final int SUB_BITS = 4;
+        private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+        // LongAdders, so threads recording into the same bucket do not contend;
+        // their cells are only allocated once a bucket is actually contended
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        LatencyHistogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) Math.max(0, value);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) - SUB_BUCKETS;
+            return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+        }
+
+        // Largest value that falls into the bucket, so percentiles never under-report
+        static long highestValueIn(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+            int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BITS);
+            return (SUB_BUCKETS + sub) * width + width - 1;
+        }
+
+        void record(long nanos) {
+            counts[bucketOf(nanos)].increment();
+            total.increment();
+            if (nanos > max.get()) {
+                max.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        public long count() {
+            return total.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public long percentile(double percentile) {
+            long n = count();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100.0 * n);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts[bucket].sum();
+                if (seen >= rank) {
+                    return Math.min(highestValueIn(bucket), max());
+                }
+            }
+            return max();
+        }
+    }
+}
+
+class User {
+    private int id;
+    private String name;
+    
+    public User(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+    
+    public int getId() { return id; }
+    public String getName() { return name; }
+    
+    @Override
+    public String toString() {
+        return "User{id=" + id + ", name='" + name + "'}";
+    }
+}
+
+// ========================================
+// BENCHMARKS
+// ========================================
+
+// Small self-contained micro-benchmark harness for the classes above.
+// Run it with:  java GenericsBenchmark --sizes=1000,100000,10000000 --threads=1,4 --filter=findById
+// Each benchmark warms up, then counts operations for a fixed time on every
+// thread at once. Results go to stdout as CSV so runs can be diffed for regressions.
+class GenericsBenchmark {
+
+    // One benchmark operation; returns something derived from its result so the
+    // JIT cannot throw the work away
+    interface Op {
+        long run(int thread, long iteration);
+    }
+
+    interface Setup {
+        Op create(int size, int threads);
+    }
 
-// ========================================
-// GENERIC METHODS
-// ========================================
+    static class Spec {
+        final String name;
+        final boolean threadSafe; // Only thread-safe benchmarks run with more than one thread
+        final Setup setup;
 
-class GenericMethods {
-    
-    // Generic method to swap elements in an array
-    public static <T> void swap(T[] array, int i, int j) {
-        T temp = array[i];
-        array[i] = array[j];
-        array[j] = temp;
+        Spec(String name, boolean threadSafe, Setup setup) {
+            this.name = name;
+            this.threadSafe = threadSafe;
+            this.setup = setup;
+        }
     }
-    
-    // Generic method to find maximum element
-    public static <T extends Comparable<T>> T findMax(T[] array) {
-        if (array.length == 0) return null;
-        
-        T max = array[0];
-        for (int i = 1; i < array.length; i++) {
-            if (array[i].compareTo(max) > 0) {
-                max = array[i];
+
+    static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1_000, 100_000};
+        int[] threadCounts = defaultThreadCounts();
+        long warmupMillis = 300;
+        long measureMillis = 500;
+        String filter = "";
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--sizes=")) sizes = parseInts(value);
+            else if (arg.startsWith("--threads=")) threadCounts = parseInts(value);
+            else if (arg.startsWith("--warmup=")) warmupMillis = Long.parseLong(value);
+            else if (arg.startsWith("--time=")) measureMillis = Long.parseLong(value);
+            else if (arg.startsWith("--filter=")) filter = value;
+            else throw new IllegalArgumentException("Unknown option " + arg);
+        }
+
+        // WildcardExamples print on every call; keep that out of the results
+        PrintStream results = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            results.println("benchmark,size,threads,ops,ns_per_op,ops_per_sec,bytes_per_op");
+            for (Spec spec : specs()) {
+                if (!spec.name.contains(filter)) continue;
+                for (int size : sizes) {
+                    for (int threads : threadCounts) {
+                        if (threads > 1 && !spec.threadSafe) continue;
+                        Op op = spec.setup.create(size, threads);
+                        long[] measured = run(op, threads, warmupMillis, measureMillis);
+                        long ops = measured[0];
+                        double seconds = measured[1] / 1e9;
+                        results.printf(Locale.ROOT, "%s,%d,%d,%d,%.1f,%.0f,%.1f%n", spec.name, size, threads, ops,
+                                measured[1] * (double) threads / ops, ops / seconds, measured[2] / (double) ops);
+                    }
+                }
             }
+        } finally {
+            System.setOut(results);
         }
-        return max;
     }
-    
-    // Generic method to convert array to list
-    public static <T> List<T> arrayToList(T[] array) {
-        List<T> list = new ArrayList<T>();
-        for (T item : array) {
-            list.add(item);
+
+    private static int[] defaultThreadCounts() {
+        List<Integer> counts = new ArrayList<>();
+        for (int t = 1; t < Runtime.getRuntime().availableProcessors(); t *= 2) {
+            counts.add(t);
         }
-        return list;
+        counts.add(Runtime.getRuntime().availableProcessors());
+        return counts.stream().mapToInt(Integer::intValue).toArray();
     }
-}
 
-// ========================================
-// BOUNDED TYPE PARAMETERS
-// ========================================
+    private static int[] parseInts(String csv) {
+        return Arrays.stream(csv.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
 
-// Upper bounded: T must extend Number
-class NumberBox<T extends Number> {
-    private T number;
-    
-    public NumberBox(T number) {
-        this.number = number;
+    // Bytes allocated by the current thread so far, or 0 if the JVM cannot tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+        }
+        return 0;
     }
-    
-    public double getDoubleValue() {
-        return number.doubleValue(); // Can call Number methods
+
+    // Returns {operations measured across all threads, wall-clock nanos of the
+    // measurement, bytes allocated by the benchmark threads while measuring}
+    static long[] run(Op op, int threads, long warmupMillis, long measureMillis) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        LongAdder totalOps = new LongAdder();
+        LongAdder totalBytes = new LongAdder();
+        AtomicLong lastFinish = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        long[] window = new long[2];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    long warmupEnd = window[0];
+                    long measureEnd = window[1];
+                    long i = 0;
+                    long local = 0;
+                    while (System.nanoTime() < warmupEnd) {
+                        local += op.run(thread, i++);
+                    }
+                    // Read the clock less often for fast operations, every time for slow ones
+                    int batch = (int) Math.max(1, Math.min(64, i / 10_000));
+                    long counted = 0;
+                    long now;
+                    long bytesBefore = allocatedBytes();
+                    do {
+                        for (int k = 0; k < batch; k++) {
+                            local += op.run(thread, i++);
+                        }
+                        counted += batch;
+                        now = System.nanoTime();
+                    } while (now < measureEnd);
+                    totalBytes.add(allocatedBytes() - bytesBefore);
+                    totalOps.add(counted);
+                    lastFinish.accumulateAndGet(now, Math::max);
+                    sink += local;
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        long now = System.nanoTime();
+        window[0] = now + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        window[1] = window[0] + TimeUnit.MILLISECONDS.toNanos(measureMillis);
+        start.await(); // The barrier publishes window[] to the workers
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return new long[] {totalOps.sum(), lastFinish.get() - window[0], totalBytes.sum()};
     }
-    
-    public boolean isPositive() {
-        return number.doubleValue() > 0;
+
+    // Spreads iteration numbers over [0, size) so lookups are not sequential
+    private static int index(long iteration, int thread, int size) {
+        return (int) Long.remainderUnsigned(iteration * 0x9E3779B97F4A7C15L + thread, size);
+    }
+
+    private static User[] users(int size) {
+        User[] users = new User[size];
+        for (int i = 0; i < size; i++) {
+            users[i] = new User(i, "user" + i);
+        }
+        return users;
+    }
+
+    private static Integer[] randomIntegers(int size) {
+        Random random = new Random(42);
+        Integer[] numbers = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            numbers[i] = random.nextInt();
+        }
+        return numbers;
+    }
+
+    static List<Spec> specs() {
+        List<Spec> specs = new ArrayList<>();
+        addRepositorySpecs(specs, "UserRepository", UserRepository::new, false);
+        addRepositorySpecs(specs, "IndexedUserRepository", IndexedUserRepository::new, false);
+        addRepositorySpecs(specs, "ConcurrentRepository", () -> new ConcurrentRepository<>(User::getId), true);
+
+        specs.add(new Spec("GenericMethods.findMax", true, (size, threads) -> {
+            Integer[] numbers = randomIntegers(size);
+            return (thread, i) -> GenericMethods.findMax(numbers);
+        }));
+        specs.add(new Spec("GenericMethods.listView", true, (size, threads) -> {
+            Integer[] numbers = randomIntegers(size);
+            return (thread, i) -> GenericMethods.listView(numbers).get(index(i, thread, size));
+        }));
+        // Copy-then-operate against the in-place versions
+        specs.add(new Spec("Collections.reverse(arrayToList)", true, (size, threads) -> {
+            Integer[] numbers = randomIntegers(size);
+            return (thread, i) -> {
+                List<Integer> copy = GenericMethods.arrayToList(numbers);
+                Collections.reverse(copy);
+                return copy.get(0);
+            };
+        }));
+        specs.add(new Spec("GenericMethods.reverse", true, (size, threads) -> {
+            Integer[][] perThread = new Integer[threads][];
+            for (int t = 0; t < threads; t++) {
+                perThread[t] = randomIntegers(size);
+            }
+            return (thread, i) -> {
+                GenericMethods.reverse(perThread[thread]);
+                return perThread[thread][0];
+            };
+        }));
+        specs.add(new Spec("Collections.shuffle(arrayToList)", true, (size, threads) -> {
+            Integer[] numbers = randomIntegers(size);
+            Random[] randoms = new Random[threads];
+            Arrays.setAll(randoms, Random::new);
+            return (thread, i) -> {
+                List<Integer> copy = GenericMethods.arrayToList(numbers);
+                Collections.shuffle(copy, randoms[thread]);
+                return copy.get(0);
+            };
+        }));
+        specs.add(new Spec("GenericMethods.shuffle(int[])", true, (size, threads) -> {
+            int[][] perThread = new int[threads][];
+            Random[] randoms = new Random[threads];
+            for (int t = 0; t < threads; t++) {
+                perThread[t] = new Random(t).ints(size).toArray();
+                randoms[t] = new Random(t);
+            }
+            return (thread, i) -> {
+                GenericMethods.shuffle(perThread[thread], randoms[thread]);
+                return perThread[thread][0];
+            };
+        }));
+        specs.add(new Spec("GenericMethods.partition(int[])", true, (size, threads) -> {
+            int[][] perThread = new int[threads][];
+            for (int t = 0; t < threads; t++) {
+                perThread[t] = new Random(t).ints(size).toArray();
+            }
+            return (thread, i) -> GenericMethods.partition(perThread[thread], n -> (n & 1) == (i & 1));
+        }));
+        specs.add(new Spec("GenericMethods.parallelFindMax", false, (size, threads) -> {
+            Integer[] numbers = randomIntegers(size);
+            return (thread, i) -> GenericMethods.parallelFindMax(numbers);
+        }));
+        specs.add(new Spec("GenericMethods.findMax(int[])", true, (size, threads) -> {
+            int[] numbers = new Random(42).ints(size).toArray();
+            return (thread, i) -> GenericMethods.findMax(numbers);
+        }));
+        specs.add(new Spec("GenericMethods.parallelFindMax(int[])", false, (size, threads) -> {
+            int[] numbers = new Random(42).ints(size).toArray();
+            return (thread, i) -> GenericMethods.parallelFindMax(numbers);
+        }));
+        specs.add(new Spec("GenericMethods.topK", true, (size, threads) -> {
+            Integer[] numbers = randomIntegers(size);
+            return (thread, i) -> GenericMethods.topK(numbers, 10, Comparator.naturalOrder()).get(0);
+        }));
+        specs.add(new Spec("GenericMethods.parallelTopK", false, (size, threads) -> {
+            Integer[] numbers = randomIntegers(size);
+            return (thread, i) -> GenericMethods.parallelTopK(numbers, 10, Comparator.naturalOrder()).get(0);
+        }));
+        specs.add(new Spec("GenericMethods.swap", true, (size, threads) -> {
+            Integer[][] perThread = new Integer[threads][];
+            for (int t = 0; t < threads; t++) {
+                perThread[t] = randomIntegers(size);
+            }
+            return (thread, i) -> {
+                Integer[] numbers = perThread[thread];
+                GenericMethods.swap(numbers, index(i, 0, size), index(i, 1, size));
+                return numbers[0];
+            };
+        }));
+        specs.add(new Spec("GenericMethods.arrayToList", true, (size, threads) -> {
+            Integer[] numbers = randomIntegers(size);
+            return (thread, i) -> GenericMethods.arrayToList(numbers).size();
+        }));
+
+        // Boxed generic holders against their primitive specializations;
+        // compare the bytes_per_op column. Boxes are not thread-safe, so every
+        // thread gets its own.
+        specs.add(new Spec("Box.setGet", true, (size, threads) -> {
+            List<Box<Integer>> boxes = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                boxes.add(new Box<>());
+            }
+            return (thread, i) -> {
+                Box<Integer> box = boxes.get(thread);
+                box.set((int) i);
+                return box.get();
+            };
+        }));
+        specs.add(new Spec("IntBox.setGet", true, (size, threads) -> {
+            IntBox[] boxes = new IntBox[threads];
+            for (int t = 0; t < threads; t++) {
+                boxes[t] = new IntBox();
+            }
+            return (thread, i) -> {
+                IntBox box = boxes[thread];
+                box.set((int) i);
+                return box.get();
+            };
+        }));
+        specs.add(new Spec("Pair.sum", true, (size, threads) -> {
+            List<Pair<Integer, Integer>> pairs = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                pairs.add(new Pair<>(i, i * 2));
+            }
+            return (thread, i) -> {
+                Pair<Integer, Integer> pair = pairs.get(index(i, thread, size));
+                return pair.getFirst() + pair.getSecond();
+            };
+        }));
+        specs.add(new Spec("IntIntPair.sum", true, (size, threads) -> {
+            IntIntPair[] pairs = new IntIntPair[size];
+            for (int i = 0; i < size; i++) {
+                pairs[i] = new IntIntPair(i, i * 2);
+            }
+            return (thread, i) -> {
+                IntIntPair pair = pairs[index(i, thread, size)];
+                return pair.getFirst() + pair.getSecond();
+            };
+        }));
+        specs.add(new Spec("NumberBox.getDoubleValue", true, (size, threads) ->
+                (thread, i) -> (long) new NumberBox<>((double) i).getDoubleValue()));
+        specs.add(new Spec("DoubleNumberBox.getDoubleValue", true, (size, threads) ->
+                (thread, i) -> (long) new DoubleNumberBox(i).getDoubleValue()));
+
+        // Aggregating boxed List<Integer> against the primitive column
+        specs.add(new Spec("List<Integer>.sum", true, (size, threads) -> {
+            List<Integer> numbers = Arrays.asList(randomIntegers(size));
+            return (thread, i) -> {
+                long sum = 0;
+                for (Number n : numbers) {
+                    sum += n.longValue();
+                }
+                return sum;
+            };
+        }));
+        specs.add(new Spec("NumberColumn.sum", true, (size, threads) -> {
+            NumberColumn column = NumberColumn.ofInts();
+            column.appendAll(new Random(42).ints(size).toArray());
+            return (thread, i) -> column.sumAsLong();
+        }));
+        specs.add(new Spec("WildcardExamples.printNumbers", true, (size, threads) -> {
+            List<Integer> numbers = Arrays.asList(randomIntegers(size));
+            return (thread, i) -> {
+                WildcardExamples.printNumbers(numbers);
+                return numbers.size();
+            };
+        }));
+        specs.add(new Spec("WildcardExamples.addNumbers", true, (size, threads) -> {
+            List<List<Number>> perThread = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                perThread.add(new ArrayList<>(Arrays.asList(randomIntegers(size))));
+            }
+            return (thread, i) -> {
+                List<Number> numbers = perThread.get(thread);
+                WildcardExamples.addNumbers(numbers);
+                numbers.remove(numbers.size() - 1); // Keep the list at its benchmark size
+                numbers.remove(numbers.size() - 1);
+                return numbers.size();
+            };
+        }));
+        specs.add(new Spec("WildcardExamples.printListSize", true, (size, threads) -> {
+            List<Integer> numbers = Arrays.asList(randomIntegers(size));
+            return (thread, i) -> {
+                WildcardExamples.printListSize(numbers);
+                return numbers.size();
+            };
+        }));
+        return specs;
+    }
+
+    private static void addRepositorySpecs(List<Spec> specs, String name,
+                                           Supplier<Repository<User>> factory, boolean threadSafe) {
+        specs.add(new Spec(name + ".save", threadSafe, (size, threads) -> {
+            User[] users = users(size);
+            List<Repository<User>> repos = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                repos.add(factory.get());
+            }
+            return (thread, i) -> {
+                // Start over every `size` saves so list-backed stores do not grow without bound
+                int slot = (int) (i % size);
+                if (slot == 0) {
+                    repos.set(thread, factory.get());
+                }
+                repos.get(thread).save(users[slot]);
+                return slot;
+            };
+        }));
+        specs.add(new Spec(name + ".findById", threadSafe, (size, threads) -> {
+            Repository<User> repo = factory.get();
+            repo.saveAll(Arrays.asList(users(size)));
+            return (thread, i) -> repo.findById(index(i, thread, size)).getId();
+        }));
+        specs.add(new Spec(name + ".findAll", threadSafe, (size, threads) -> {
+            Repository<User> repo = factory.get();
+            repo.saveAll(Arrays.asList(users(size)));
+            return (thread, i) -> repo.findAll().size();
+        }));
+        // delete followed by a re-save of the same user, so the size stays constant
+        specs.add(new Spec(name + ".delete", threadSafe, (size, threads) -> {
+            Repository<User> repo = factory.get();
+            User[] users = users(size);
+            repo.saveAll(Arrays.asList(users));
+            return (thread, i) -> {
+                User user = users[index(i, thread, size)];
+                repo.delete(user);
+                repo.save(user);
+                return user.getId();
+            };
+        }));
     }
 }
 
-// Multiple bounds: T must extend Number AND implement Comparable
-class ComparableNumberBox<T extends Number & Comparable<T>> {
-    private T number;
-    
-    public ComparableNumberBox(T number) {
-        this.number = number;
+// Heap-footprint report for Interner. Builds `count` Pair<String, Integer>
+// values drawn from a limited set of distinct ones, as parsed input would be,
+// and measures retained heap with and without interning.
+// Run it with:  java -Xmx4g InterningFootprint 10000000
+class InterningFootprint {
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int distinct = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+        long plain = measure(count, distinct, null);
+        long interned = measure(count, distinct, new Interner<>());
+        System.out.printf(Locale.ROOT, "pairs=%d distinct=%d%n", count, distinct);
+        System.out.printf(Locale.ROOT, "without interning: %,d bytes (%.1f per pair)%n", plain, plain / (double) count);
+        System.out.printf(Locale.ROOT, "with interning:    %,d bytes (%.1f per pair)%n", interned, interned / (double) count);
     }
-    
-    public boolean isGreaterThan(T other) {
-        return number.compareTo(other) > 0; // Can use Comparable methods
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // Generic array creation for the Pair[] below
+    private static long measure(int count, int distinct, Interner<Pair<String, Integer>> interner) {
+        long before = usedHeap();
+        Pair<String, Integer>[] pairs = new Pair[count];
+        for (int i = 0; i < count; i++) {
+            int key = (int) Long.remainderUnsigned(i * 0x9E3779B97F4A7C15L, distinct);
+            // new String and a large Integer: each parsed row normally gets fresh objects
+            Pair<String, Integer> pair = new Pair<>(new String("user" + key), 1000 + key);
+            pairs[i] = interner == null ? pair : interner.intern(pair);
+        }
+        long after = usedHeap();
+        Reference.reachabilityFence(pairs);
+        Reference.reachabilityFence(interner);
+        return after - before;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
     }
 }
 
-// ========================================
-// WILDCARDS
-// ========================================
+// Compares the list-backed UserRepository with IndexedUserRepository as the
+// number of users grows. Each operation runs up to a million times or for about
+// a second, so constant-time operations get a steady-state figure at every size
+// while scans of every user stop after a few dozen calls.
+// Run it with:  java -Xmx4g RepositoryScalingBenchmark 1000,100000,10000000
+class RepositoryScalingBenchmark {
+    private static final int MAX_OPS = 1_000_000;
+    private static final long BUDGET_NANOS = 1_000_000_000L; // Per operation type
 
-class WildcardExamples {
-    
-    // Upper bounded wildcard: can read but not write
-    public static void printNumbers(List<? extends Number> numbers) {
-        for (Number num : numbers) {
-            System.out.println(num);
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+                : new int[] {1_000, 100_000, 10_000_000};
+        System.out.println("repository,size,operation,ops,ns_per_op");
+        for (int size : sizes) {
+            measure("UserRepository", new UserRepository(), size);
+            measure("IndexedUserRepository", new IndexedUserRepository(), size);
         }
-        // numbers.add(42); // Compile error! Can't add to ? extends
     }
-    
-    // Lower bounded wildcard: can write but limited reading
-    public static void addNumbers(List<? super Integer> numbers) {
-        numbers.add(42);
-        numbers.add(100);
-        // Integer num = numbers.get(0); // Compile error! Can only get Object
+
+    private static void measure(String name, Repository<User> repository, int size) {
+        List<User> users = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            users.add(new User(i, "user" + i % 100_000)); // Names repeat, as real ones do
+        }
+        long start = System.nanoTime();
+        repository.saveAll(users);
+        print(name, size, "saveAll", size, System.nanoTime() - start);
+
+        SplittableRandom random = new SplittableRandom(42);
+        long[] checksum = new long[1];
+        for (int round = 0; round < 2; round++) { // The first round only warms up the JIT
+            boolean report = round == 1;
+            run(name, size, "findById", report,
+                    () -> checksum[0] += repository.findById(random.nextInt(size)).getId());
+            run(name, size, "delete+save", report, () -> {
+                User user = users.get(random.nextInt(size));
+                repository.delete(user);
+                repository.save(user);
+            });
+            run(name, size, "findPage(mid)", report, () -> checksum[0] += repository.findPage(size / 2, 20).size());
+            run(name, size, "findAfter(mid)", report, () -> checksum[0] += repository.findAfter(size / 2, 20).size());
+        }
+        if (checksum[0] == 42) System.out.println(); // Keep the lookups observable
     }
-    
-    // Unbounded wildcard
-    public static void printListSize(List<?> list) {
-        System.out.println("List size: " + list.size());
-        // Can only call methods that don't depend on type parameter
+
+    private static void run(String name, int size, String operation, boolean report, Runnable op) {
+        long start = System.nanoTime();
+        int ops = 0;
+        long elapsed;
+        do {
+            for (int i = 0; i < 16; i++) { // Reads the clock once per 16 calls
+                op.run();
+            }
+            ops += 16;
+            elapsed = System.nanoTime() - start;
+        } while (ops < MAX_OPS && elapsed < BUDGET_NANOS);
+        if (report) print(name, size, operation, ops, elapsed);
+    }
+
+    private static void print(String name, int size, String operation, int ops, long nanos) {
+        System.out.printf(Locale.ROOT, "%s,%d,%s,%d,%.1f%n", name, size, operation, ops, nanos / (double) ops);
     }
 }
 
-// ========================================
-// GENERIC INTERFACES
-// ========================================
+// Batch vs single-call cost of saveAll, findAllById and deleteAll against the
+// equivalent loops of save, findById and delete, for every in-memory repository.
+// Each batch goes into a repository already holding `size` users.
+// Run it with:  java BulkOperationsBenchmark 10000,100000 1000
+class BulkOperationsBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MIN_ROUNDS = 10;
+    private static final long MIN_NANOS = 2_000_000_000L; // Per repository and size
 
-interface Repository<T> {
-    void save(T entity);
-    T findById(int id);
-    List<T> findAll();
-    void delete(T entity);
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+                : new int[] {10_000, 100_000};
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+
+        System.out.println("repository,size,batch,operation,single_ns_per_entity,batch_ns_per_entity,speedup");
+        for (int size : sizes) {
+            measure("UserRepository", new UserRepository(), size, batchSize);
+            measure("IndexedUserRepository", new IndexedUserRepository(), size, batchSize);
+            measure("ConcurrentRepository", new ConcurrentRepository<>(User::getId), size, batchSize);
+        }
+    }
+
+    private static void measure(String name, Repository<User> repository, int size, int batchSize) {
+        List<User> existing = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            existing.add(new User(i, "user" + i));
+        }
+        repository.saveAll(existing);
+        List<User> batch = new ArrayList<>(batchSize);
+        List<Integer> ids = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new User(size + i, "new" + i));
+            ids.add(size + i);
+        }
+
+        long[] single = new long[3];
+        long[] bulk = new long[3];
+        long found = 0;
+        int rounds = 0;
+        long measured = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MIN_ROUNDS || measured < MIN_NANOS; round++) {
+            long t0 = System.nanoTime();
+            for (User user : batch) repository.save(user);
+            long t1 = System.nanoTime();
+            for (int id : ids) found += repository.findById(id) == null ? 0 : 1;
+            long t2 = System.nanoTime();
+            for (User user : batch) repository.delete(user);
+            long t3 = System.nanoTime();
+            repository.saveAll(batch);
+            long t4 = System.nanoTime();
+            found += repository.findAllById(ids).size();
+            long t5 = System.nanoTime();
+            repository.deleteAll(batch);
+            long t6 = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                rounds++;
+                measured += t6 - t0;
+                single[0] += t1 - t0;
+                single[1] += t2 - t1;
+                single[2] += t3 - t2;
+                bulk[0] += t4 - t3;
+                bulk[1] += t5 - t4;
+                bulk[2] += t6 - t5;
+            }
+        }
+        if (found != 2L * batchSize * (WARMUP_ROUNDS + rounds)) {
+            throw new IllegalStateException(name + " lost users: found " + found);
+        }
+
+        String[] operations = {"save/saveAll", "findById/findAllById", "delete/deleteAll"};
+        double entities = (double) rounds * batchSize;
+        for (int op = 0; op < 3; op++) {
+            System.out.printf(Locale.ROOT, "%s,%d,%d,%s,%.1f,%.1f,%.1fx%n", name, size, batchSize, operations[op],
+                    single[op] / entities, bulk[op] / entities, single[op] / (double) bulk[op]);
+        }
+    }
 }
 
-class UserRepository implements Repository<User> {
-    private List<User> users = new ArrayList<>();
-    
-    @Override
-    public void save(User entity) {
-        users.add(entity);
+// Stress and throughput check for ConcurrentRepository with 1..N threads. Each
+// thread runs a read-heavy mix on its own ids and keeps a private model of what
+// it wrote; some of its writes are saveAll/deleteAll batches. Meanwhile a checker
+// thread takes findAll() snapshots, which must show every batch all or nothing.
+// At the end the repository must match the union of the models exactly.
+// Run it with:  java ConcurrentRepositoryStress 16 1000
+class ConcurrentRepositoryStress {
+    private static final int KEYS = 10_000;       // Single-entity ids per thread
+    private static final int BATCH = 16;          // Entities per saveAll/deleteAll
+    private static final int BATCH_BASE = 500_000; // Batch ids start here in each thread's range
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1_000;
+
+        System.out.println("threads,ops,ops_per_sec,snapshots,violations");
+        boolean failed = false;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            failed |= !run(threads, millis);
+        }
+        if (failed) {
+            throw new IllegalStateException("ConcurrentRepository returned inconsistent results");
+        }
     }
-    
-    @Override
-    public User findById(int id) {
-        return users.stream()
-                   .filter(user -> user.getId() == id)
-                   .findFirst()
-                   .orElse(null);
+
+    private static int owner(int id) {
+        return id / 1_000_000;
     }
-    
-    @Override
-    public List<User> findAll() {
-        return new ArrayList<>(users);
+
+    private static boolean run(int threads, long millis) throws Exception {
+        ConcurrentRepository<User> repository = new ConcurrentRepository<>(User::getId);
+        List<Map<Integer, User>> models = new ArrayList<>();
+        LongAdder ops = new LongAdder();
+        AtomicLong violations = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int base = t * 1_000_000;
+            Map<Integer, User> model = new HashMap<>();
+            models.add(model);
+            workers.add(new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(base);
+                List<User> batch = new ArrayList<>(BATCH);
+                for (int i = 0; i < BATCH; i++) {
+                    batch.add(new User(base + BATCH_BASE + i, "batch"));
+                }
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                long local = 0;
+                while (!stop.get()) {
+                    int id = base + random.nextInt(KEYS);
+                    int dice = random.nextInt(100);
+                    if (dice < 80) {
+                        // Nobody else writes this id, so the read must match the model
+                        if (repository.findById(id) != model.get(id)) {
+                            violations.incrementAndGet();
+                        }
+                    } else if (dice < 90) {
+                        User user = new User(id, "u" + local);
+                        repository.save(user);
+                        model.put(id, user);
+                    } else if (dice < 95) {
+                        repository.delete(new User(id, null));
+                        model.remove(id);
+                    } else {
+                        repository.saveAll(batch);
+                        repository.deleteAll(batch);
+                    }
+                    local++;
+                }
+                ops.add(local);
+            }, "stress-" + t));
+        }
+
+        AtomicLong snapshots = new AtomicLong();
+        Thread checker = new Thread(() -> {
+            int[] batchCounts = new int[threads];
+            while (!stop.get()) {
+                Arrays.fill(batchCounts, 0);
+                for (User user : repository.findAll()) {
+                    if (user.getId() % 1_000_000 >= BATCH_BASE) {
+                        batchCounts[owner(user.getId())]++;
+                    }
+                }
+                for (int count : batchCounts) {
+                    if (count != 0 && count != BATCH) {
+                        violations.incrementAndGet(); // Saw half of a batch
+                    }
+                }
+                snapshots.incrementAndGet();
+            }
+        }, "stress-checker");
+
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        start.await();
+        long begin = System.nanoTime();
+        checker.start();
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        checker.join();
+
+        // Every batch was deleted again, so only the single-entity writes remain
+        int expected = 0;
+        for (Map<Integer, User> model : models) {
+            expected += model.size();
+            for (User user : model.values()) {
+                if (repository.findById(user.getId()) != user) {
+                    violations.incrementAndGet();
+                }
+            }
+        }
+        if (repository.size() != expected) {
+            violations.incrementAndGet();
+        }
+
+        System.out.printf(Locale.ROOT, "%d,%d,%.0f,%d,%d%n", threads, ops.sum(),
+                ops.sum() / (elapsed / 1e9), snapshots.get(), violations.get());
+        return violations.get() == 0;
     }
-    
-    @Override
-    public void delete(User entity) {
-        users.remove(entity);
+}
+
+// Cost of InstrumentedRepository: findById on a ConcurrentRepository, bare and
+// wrapped with the default sampling and with every call timed, at 1..N threads.
+// Sequential ids stay in cache; random ids miss it, and there the bare loop gets
+// to overlap the misses of consecutive lookups while a timed call cannot.
+// Run it with:  java InstrumentationOverhead 100000 1,2,4,8
+class InstrumentationOverhead {
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int[] threadCounts = args.length > 1
+                ? Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray()
+                : new int[] {1, 2, 4, 8};
+
+        ConcurrentRepository<User> bare = new ConcurrentRepository<>(User::getId);
+        List<User> users = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            users.add(new User(i, "user" + i));
+        }
+        bare.saveAll(users);
+        InstrumentedRepository<User> sampled = new InstrumentedRepository<>(bare);
+        InstrumentedRepository<User> everyCall = new InstrumentedRepository<>(bare, 1);
+
+        System.out.println("ids,threads,bare_ns_per_op,sampled_ns_per_op,sampled_overhead_pct,"
+                + "every_call_ns_per_op,every_call_overhead_pct");
+        for (boolean random : new boolean[] {false, true}) {
+            for (int threads : threadCounts) {
+                double plain = nanosPerOp(bare, size, threads, random);
+                double lite = nanosPerOp(sampled, size, threads, random);
+                double full = nanosPerOp(everyCall, size, threads, random);
+                System.out.printf(Locale.ROOT, "%s,%d,%.1f,%.1f,%.0f%%,%.1f,%.0f%%%n", random ? "random" : "sequential",
+                        threads, plain, lite, 100 * (lite - plain) / plain, full, 100 * (full - plain) / plain);
+            }
+        }
+        for (InstrumentedRepository<User> instrumented : Arrays.asList(sampled, everyCall)) {
+            if (instrumented.inFlight() != 0) {
+                throw new IllegalStateException("in-flight gauge leaked: " + instrumented.inFlight());
+            }
+        }
+    }
+
+    private static double nanosPerOp(Repository<User> repository, int size, int threads, boolean random)
+            throws Exception {
+        GenericsBenchmark.Op op = (thread, i) -> {
+            long n = random ? (i * 0x9E3779B97F4A7C15L + thread) >>> 1 : i + thread * 997L;
+            return repository.findById((int) (n % size)).getId();
+        };
+        long[] measured = GenericsBenchmark.run(op, threads, 500, 1_000);
+        return measured[1] * (double) threads / measured[0];
     }
 }
 
-class User {
-    private int id;
-    private String name;
-    
-    public User(int id, String name) {
-        this.id = id;
-        this.name = name;
+// Kill/recover acceptance check for DurableUserRepository. Each round starts a
+// child JVM that saves and deletes users from several threads while snapshots
+// run, printing every mutation once it has been acknowledged. The child is then
+// killed with SIGKILL at a random moment, and the repository is reopened: every
+// acknowledged save must be there and every acknowledged delete must be gone.
+// Rounds share one directory, so recovery of an already recovered log is covered.
+// Run it with:  java DurabilityCrashCheck 10
+class DurabilityCrashCheck {
+    private static final int WRITERS = 4;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("child")) {
+            child(Path.of(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        Path dir = Files.createTempDirectory("durable-crash");
+        Map<Integer, String> saved = new HashMap<>();  // Acknowledged, must survive
+        Set<Integer> deleted = new HashSet<>();         // Acknowledged, must stay gone
+        SplittableRandom random = new SplittableRandom();
+        boolean failed = false;
+        try {
+            System.out.println("round,acked_saves,acked_deletes,recovered_users,lost,resurrected");
+            for (int round = 0; round < rounds; round++) {
+                int[] acked = crashChild(dir, round, 300 + random.nextInt(1_200), saved, deleted);
+
+                int lost = 0;
+                int resurrected = 0;
+                int recovered;
+                try (DurableUserRepository repository = new DurableUserRepository(dir)) {
+                    for (Map.Entry<Integer, String> entry : saved.entrySet()) {
+                        User user = repository.findById(entry.getKey());
+                        if (user == null || !user.getName().equals(entry.getValue())) lost++;
+                    }
+                    for (int id : deleted) {
+                        if (repository.findById(id) != null) resurrected++;
+                    }
+                    recovered = repository.size();
+                }
+                System.out.printf(Locale.ROOT, "%d,%d,%d,%d,%d,%d%n",
+                        round, acked[0], acked[1], recovered, lost, resurrected);
+                failed |= lost > 0 || resurrected > 0;
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+        if (failed) {
+            throw new IllegalStateException("Acknowledged writes did not survive a crash");
+        }
     }
-    
-    public int getId() { return id; }
-    public String getName() { return name; }
-    
-    @Override
-    public String toString() {
-        return "User{id=" + id + ", name='" + name + "'}";
+
+    // Runs one child until the kill and records what it acknowledged.
+    // Returns {acknowledged saves, acknowledged deletes} for this round.
+    private static int[] crashChild(Path dir, int round, long killAfterMillis,
+                                    Map<Integer, String> saved, Set<Integer> deleted) throws Exception {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "DurabilityCrashCheck", "child", dir.toString(), String.valueOf(round))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        int[] acked = new int[2];
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(child.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.endsWith(";")) continue; // Torn by the kill
+                    String[] parts = line.substring(0, line.length() - 1).split(" ");
+                    int id = Integer.parseInt(parts[1]);
+                    synchronized (saved) {
+                        if (parts[0].equals("S")) {
+                            saved.put(id, parts[2]);
+                            acked[0]++;
+                        } else if (parts[0].equals("d")) {
+                            saved.remove(id); // In flight: may or may not survive
+                        } else {
+                            deleted.add(id);
+                            acked[1]++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "crash-reader");
+        reader.start();
+
+        Thread.sleep(killAfterMillis);
+        // SIGKILL, no shutdown hooks or close(). Through the handle, unlike
+        // Process.destroyForcibly(), so the pipe stays open for acks still in it.
+        child.toHandle().destroyForcibly();
+        child.waitFor();
+        reader.join();
+        synchronized (saved) {
+            return acked;
+        }
+    }
+
+    // Child side: every line is printed only after the call returned, i.e. after
+    // the repository acknowledged the mutation as durable
+    private static void child(Path dir, int round) throws Exception {
+        DurableUserRepository repository = new DurableUserRepository(dir, 50);
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int base = round * 10_000_000 + w * 1_000_000;
+            writers.add(new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(base);
+                for (int i = 0; ; i++) {
+                    User user = new User(base + i, "r" + round + "u" + i);
+                    repository.save(user);
+                    System.out.println("S " + user.getId() + " " + user.getName() + ";");
+                    if (i > 0 && random.nextInt(4) == 0) {
+                        int victim = base + random.nextInt(i);
+                        System.out.println("d " + victim + ";");
+                        repository.delete(new User(victim, null));
+                        System.out.println("D " + victim + ";");
+                    }
+                }
+            }, "crash-writer-" + w));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        while (true) {
+            Thread.sleep(20);
+            repository.snapshot(); // Races the scheduled snapshots on purpose
+        }
     }
 }
 
@@ -257,6 +4059,12 @@ public class GenericsDemo {
         // Using Pair class
         Pair<String, Integer> nameAge = new Pair<>("Alice", 30);
         System.out.println("Name-Age pair: " + nameAge);
+
+        // Flyweight: equal pairs share one instance
+        Interner<Pair<String, Integer>> pairs = new Interner<>();
+        Pair<String, Integer> canonical = pairs.intern(nameAge);
+        Pair<String, Integer> duplicate = pairs.intern(new Pair<>("Alice", 30));
+        System.out.println("Interned pairs are the same object: " + (canonical == duplicate));
         
         System.out.println("\n=== Generic Methods ===");
         
@@ -265,15 +4073,33 @@ public class GenericsDemo {
         System.out.println("Before swap: " + Arrays.toString(names));
         GenericMethods.swap(names, 0, 2);
         System.out.println("After swap: " + Arrays.toString(names));
+
+        GenericMethods.reverse(names);
+        System.out.println("Reversed in place: " + Arrays.toString(names));
+        int[] digits = {1, 2, 3, 4, 5, 6};
+        GenericMethods.rotate(digits, 2);
+        System.out.println("Rotated by 2: " + Arrays.toString(digits));
+        int evens = GenericMethods.partition(digits, n -> n % 2 == 0);
+        System.out.println("Evens first (" + evens + "): " + GenericMethods.listView(digits));
         
         Integer[] numbers = {5, 2, 8, 1, 9};
         System.out.println("Max number: " + GenericMethods.findMax(numbers));
+        System.out.println("Max number (parallel): " + GenericMethods.parallelFindMax(numbers));
+        System.out.println("Max of int[]: " + GenericMethods.findMax(new int[] {5, 2, 8, 1, 9}));
+        System.out.println("Top 3: " + GenericMethods.topK(numbers, 3, Comparator.naturalOrder()));
         
         System.out.println("\n=== Bounded Types ===");
         
         NumberBox<Double> doubleBox = new NumberBox<>(3.14);
         System.out.println("Double value: " + doubleBox.getDoubleValue());
         System.out.println("Is positive: " + doubleBox.isPositive());
+
+        // Primitive versions of the same classes, with no boxing
+        IntBox primitiveBox = new IntBox();
+        primitiveBox.set(42);
+        System.out.println("IntBox: " + primitiveBox.get());
+        System.out.println("IntIntPair: " + new IntIntPair(3, 4));
+        System.out.println("DoubleNumberBox positive: " + new DoubleNumberBox(3.14).isPositive());
         
         System.out.println("\n=== Wildcards ===");
         
@@ -282,6 +4108,13 @@ public class GenericsDemo {
         
         WildcardExamples.printNumbers(intList);
         WildcardExamples.printNumbers(doubleList);
+
+        // Columnar storage: primitive array inside, List<Number> view outside
+        NumberColumn column = NumberColumn.ofInts();
+        column.appendAll(new int[] {1, 2, 3, 4, 5});
+        WildcardExamples.printNumbers(column.asList());
+        System.out.println("Column sum: " + column.sumAsLong() + ", mean: " + column.mean()
+                + ", histogram: " + Arrays.toString(column.histogram(0, 6, 3)));
         
         System.out.println("\n=== Generic Interface ===");
         
@@ -291,5 +4124,117 @@ public class GenericsDemo {
         
         System.out.println("All users: " + userRepo.findAll());
         System.out.println("User with ID 1: " + userRepo.findById(1));
+
+        // Same interface, hash-indexed implementation
+        Repository<User> indexedRepo = new IndexedUserRepository();
+        indexedRepo.save(new User(1, "John"));
+        indexedRepo.save(new User(2, "Jane"));
+        indexedRepo.save(new User(1, "Johnny")); // Upsert replaces John
+        System.out.println("Indexed users: " + indexedRepo.findAll());
+        System.out.println("Indexed user with ID 1: " + indexedRepo.findById(1));
+
+        // Secondary indexes on the user name
+        IndexedUserRepository nameIndexedRepo = new IndexedUserRepository();
+        nameIndexedRepo.saveAll(Arrays.asList(
+                new User(1, "Jane"), new User(2, "Janet"), new User(3, "John"), new User(4, "Jane")));
+        System.out.println("Users named Jane: " + nameIndexedRepo.findByName("Jane"));
+        System.out.println("Names starting with 'Jan': " + nameIndexedRepo.findByNamePrefix("Jan"));
+
+        // File-backed repository survives a restart
+        try {
+            Path usersFile = Files.createTempFile("users", ".db");
+            try (MappedUserRepository fileRepo = new MappedUserRepository(usersFile)) {
+                fileRepo.save(new User(1, "John"));
+                fileRepo.save(new User(2, "Jane"));
+                fileRepo.delete(new User(1, "John"));
+            }
+            try (MappedUserRepository reopened = new MappedUserRepository(usersFile)) {
+                System.out.println("Users after reopening file: " + reopened.findAll());
+            }
+            Files.delete(usersFile);
+        } catch (IOException e) {
+            System.out.println("File repository demo failed: " + e.getMessage());
+        }
+
+        // Write-ahead logged repository recovers from its snapshot and log
+        try {
+            Path walDir = Files.createTempDirectory("users-wal");
+            try (DurableUserRepository durableRepo = new DurableUserRepository(walDir)) {
+                durableRepo.save(new User(1, "John"));
+                durableRepo.snapshot();
+                durableRepo.save(new User(2, "Jane"));
+            }
+            try (DurableUserRepository recovered = new DurableUserRepository(walDir)) {
+                System.out.println("Recovered users: " + recovered.findAll());
+                System.out.println("Recovery: " + recovered.recoveryReport());
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(walDir)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(walDir);
+        } catch (IOException e) {
+            System.out.println("Write-ahead log demo failed: " + e.getMessage());
+        }
+
+        // Thread-safe version: many threads can save and read at once
+        ConcurrentRepository<User> sharedRepo = new ConcurrentRepository<>(User::getId);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int offset = t * 100;
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    sharedRepo.save(new User(offset + i, "user" + (offset + i)));
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.println("Concurrent repo size: " + sharedRepo.size());
+
+        // Paging and streaming without copying the whole repository
+        System.out.println("First page: " + sharedRepo.findAfter(-1, 3));
+        System.out.println("Next page: " + sharedRepo.findAfter(2, 3));
+        long longNames = sharedRepo.stream().parallel()
+                                   .filter(user -> user.getName().length() > 6)
+                                   .count();
+        System.out.println("Users with long names: " + longNames);
+
+        // Caching decorator: hot ids stay cached even when a scan passes through
+        CachingRepository<User> cachedRepo = new CachingRepository<>(sharedRepo, User::getId, 10);
+        for (int round = 0; round < 5; round++) {
+            for (int id = 0; id < 10; id++) {
+                cachedRepo.findById(id); // Hot set
+            }
+        }
+        for (int id = 100; id < 400; id++) {
+            cachedRepo.findById(id); // One-off scan
+        }
+        cachedRepo.findById(0);
+        System.out.println("Cache stats: " + cachedRepo.stats());
+
+        // Latency instrumentation around the cached repository
+        try (InstrumentedRepository<User> timedRepo = new InstrumentedRepository<>(cachedRepo)) {
+            for (int id = 0; id < 1000; id++) {
+                timedRepo.findById(id % 50);
+            }
+            timedRepo.findAll();
+            System.out.print(timedRepo.report());
+        }
+
+        // Bulk operations load or remove a whole batch in one call
+        List<User> batch = Arrays.asList(new User(10, "Ann"), new User(11, "Ben"), new User(12, "Cid"));
+        userRepo.saveAll(batch);
+        System.out.println("Users 10 and 12: " + userRepo.findAllById(Arrays.asList(10, 12)));
+        userRepo.deleteAll(batch);
+        System.out.println("After deleteAll: " + userRepo.findAll());
     }
 }